@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws;
+
+import org.chodavarapu.jgitaws.jgit.AmazonRepository;
+import org.chodavarapu.jgitaws.repositories.ConfigurationRepository;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.lib.Ref;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Func0;
+import rx.util.async.Async;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking access to the storage behind {@link AmazonRepository}, for callers that don't go through JGit and
+ * shouldn't tie up a thread for every storage call. Every operation returns a {@link CompletableFuture} that fails
+ * with a {@link java.util.concurrent.TimeoutException} if the operation takes longer than
+ * {@link JGitAwsConfiguration#getAsyncOperationTimeout()} milliseconds. Cancelling a future unsubscribes from the
+ * operation, which stops any further requests it would make; a request that is already in flight still runs to
+ * completion.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class JGitAwsAsyncClient {
+    private final JGitAwsConfiguration configuration;
+
+    public JGitAwsAsyncClient(JGitAwsConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    private <T> CompletableFuture<T> toFuture(Observable<T> operation) {
+        long timeout = configuration.getAsyncOperationTimeout();
+        Observable<T> result = operation.lastOrDefault(null);
+        if (timeout > 0) {
+            result = result.timeout(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Subscription subscription = result.subscribe(future::complete, future::completeExceptionally);
+        future.whenComplete((value, t) -> {
+            if (future.isCancelled()) {
+                subscription.unsubscribe();
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Returns a ref as it is stored, without following symbolic refs, or null if there is no such ref.
+     */
+    public CompletableFuture<Ref> getRef(String repositoryName, String refName) {
+        return toFuture(configuration.getRefRepository().getRef(repositoryName, refName));
+    }
+
+    /**
+     * Reads refs on the blocking pool. With ref snapshots, setting up a read (which first checks that the refs table
+     * supports snapshots) and reading the snapshot block the thread while they wait for DynamoDB and S3 calls, so
+     * neither can run on the calling thread or on the DynamoDB pool those calls are queued on.
+     */
+    private Observable<List<Ref>> readRefs(Func0<Observable<Ref>> refs) {
+        return Observable.defer(() -> refs.call().toList())
+                .subscribeOn(configuration.getExecutionModel().getBlockingPool().getScheduler());
+    }
+
+    public CompletableFuture<List<Ref>> getAllRefs(String repositoryName) {
+        return toFuture(readRefs(() -> configuration.getRefRepository().getAllRefsSorted(repositoryName)));
+    }
+
+    public CompletableFuture<List<Ref>> getRefsWithPrefix(String repositoryName, String prefix) {
+        return toFuture(readRefs(() ->
+                configuration.getRefRepository().getRefsWithPrefixSorted(repositoryName, prefix)));
+    }
+
+    /**
+     * Saves a ref if the stored ref still matches the old ref (or doesn't exist yet, when the old ref is null or
+     * new). Completes with false if the ref was changed by someone else.
+     */
+    public CompletableFuture<Boolean> compareAndPutRef(String repositoryName, Ref oldRef, Ref newRef) {
+        return toFuture(configuration.getRefRepository().compareAndPut(repositoryName, oldRef, newRef)
+                .lastOrDefault(false));
+    }
+
+    public CompletableFuture<Boolean> compareAndRemoveRef(String repositoryName, Ref ref) {
+        return toFuture(configuration.getRefRepository().compareAndRemove(repositoryName, ref)
+                .lastOrDefault(false));
+    }
+
+    public CompletableFuture<List<DfsPackDescription>> listPacks(AmazonRepository repository) {
+        return toFuture(configuration.getPackDescriptionRepository().getAllPackDescriptions(repository).toList());
+    }
+
+    /**
+     * Returns the text of the configuration of a repository, or null if it has none.
+     */
+    public CompletableFuture<String> loadConfig(String repositoryName) {
+        return toFuture(configuration.getConfigurationRepository().getConfiguration(repositoryName));
+    }
+
+    public CompletableFuture<Void> saveConfig(String repositoryName, String text) {
+        if (text.length() > ConfigurationRepository.MAXIMUM_CONFIGURATION_SIZE) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException("Configuration is too large!"));
+            return future;
+        }
+
+        return toFuture(configuration.getConfigurationRepository().updateConfiguration(repositoryName, text));
+    }
+
+    /**
+     * Reads up to {@code length} bytes of a pack file starting at {@code position}. The returned buffer is flipped,
+     * and holds fewer bytes than asked for only when the end of the file was reached. Reads are served from the same
+     * places as JGit reads (inlined files, resident files, the local pack cache and the S3 block cache). A read
+     * blocks while it waits for S3, and may wait for read-ahead requests queued on the S3 read pool, so reads run on
+     * the blocking pool of the {@link org.chodavarapu.jgitaws.aws.ExecutionModel}, which bounds how many run at once.
+     */
+    public CompletableFuture<ByteBuffer> readPackBlock(
+            String repositoryName,
+            String fileName,
+            long position,
+            int length) {
+        return toFuture(Async.fromCallable(() -> {
+            try (ReadableChannel channel = configuration.getPackRepository().readPack(repositoryName, fileName)) {
+                ByteBuffer block = ByteBuffer.allocate(length);
+                channel.position(position);
+                while (block.hasRemaining()) {
+                    if (channel.read(block) < 0) {
+                        break;
+                    }
+                }
+
+                block.flip();
+                return block;
+            }
+        }, configuration.getExecutionModel().getBlockingPool().getScheduler()));
+    }
+}
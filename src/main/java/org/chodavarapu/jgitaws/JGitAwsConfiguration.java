@@ -50,11 +50,20 @@ import com.amazonaws.RequestClientOptions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.s3.AmazonS3;
 import org.chodavarapu.jgitaws.aws.DynamoClient;
+import org.chodavarapu.jgitaws.aws.ExecutionModel;
+import org.chodavarapu.jgitaws.aws.LocalPackCache;
+import org.chodavarapu.jgitaws.aws.S3BlockCache;
+import org.chodavarapu.jgitaws.jgit.PackCompactionScheduler;
+import org.chodavarapu.jgitaws.jgit.PackResidency;
 import org.chodavarapu.jgitaws.repositories.ConfigurationRepository;
+import org.chodavarapu.jgitaws.repositories.ObjectIndexRepository;
 import org.chodavarapu.jgitaws.repositories.PackDescriptionRepository;
 import org.chodavarapu.jgitaws.repositories.PackRepository;
 import org.chodavarapu.jgitaws.repositories.RefRepository;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
@@ -64,12 +73,42 @@ public class JGitAwsConfiguration {
     public static final String DEFAULT_REFS_TABLE_NAME = "jga.Refs";
     public static final String DEFAULT_PACK_DESCRIPTIONS_TABLE_NAME = "jga.PackDescriptions";
     public static final String DEFAULT_PACKS_BUCKET_NAME = "jga.Packs";
+    public static final String DEFAULT_OBJECT_INDEX_TABLE_NAME = "jga.ObjectIndex";
     public static final long DEFAULT_CONFIGURATIONS_TABLE_READ_THROUGHPUT = 1;
     public static final long DEFAULT_CONFIGURATIONS_TABLE_WRITE_THROUGHPUT = 1;
     public static final long DEFAULT_REFS_TABLE_READ_THROUGHPUT = 1;
     public static final long DEFAULT_REFS_TABLE_WRITE_THROUGHPUT = 1;
     public static final long DEFAULT_PACK_DESCRIPTIONS_TABLE_READ_THROUGHPUT = 1;
     public static final long DEFAULT_PACK_DESCRIPTIONS_TABLE_WRITE_THROUGHPUT = 1;
+    public static final long DEFAULT_OBJECT_INDEX_TABLE_READ_THROUGHPUT = 1;
+    public static final long DEFAULT_OBJECT_INDEX_TABLE_WRITE_THROUGHPUT = 1;
+    public static final int DEFAULT_MAXIMUM_READ_AHEAD_BLOCKS = 32;
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_READ_BACK_BUFFER_SPILL_THRESHOLD = 64 * 1024 * 1024;
+    public static final int DEFAULT_MULTIPART_UPLOAD_PART_SIZE = 8 * 1024 * 1024;
+    public static final int MINIMUM_MULTIPART_UPLOAD_PART_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_MAXIMUM_PART_UPLOADS_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAXIMUM_PART_UPLOAD_ATTEMPTS = 3;
+    public static final long DEFAULT_MAXIMUM_REF_CACHE_AGE = 60 * 1000;
+    public static final int DEFAULT_REF_SNAPSHOT_COMPACTION_THRESHOLD = 1000;
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_REF_UPDATES = 16;
+    public static final long DEFAULT_MAXIMUM_PACK_LIST_CACHE_AGE = 60 * 1000;
+    public static final long DEFAULT_LOCAL_PACK_CACHE_SIZE = 10L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_PACK_COMPACTION_THRESHOLD = 32;
+    public static final long DEFAULT_PACK_COMPACTION_SMALL_PACK_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_GARBAGE_COLLECTION_THRESHOLD = 256;
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_PACK_COMPACTIONS = 2;
+    public static final long DEFAULT_REPLACED_PACK_DELETION_DELAY = 10 * 60 * 1000;
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_PACK_DELETES = 4;
+    public static final int DEFAULT_MAXIMUM_PACK_DELETE_ATTEMPTS = 3;
+    public static final int DEFAULT_PACK_BLOOM_FILTER_BITS_PER_OBJECT = 10;
+    public static final int DEFAULT_OBJECT_INDEX_SHARD_PREFIX_LENGTH = 2;
+    public static final long DEFAULT_PACK_RESIDENCY_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAXIMUM_PACK_RESIDENCY_AGE = 5 * 60 * 1000;
+    public static final int DEFAULT_MAXIMUM_INLINE_PACK_FILE_SIZE = 32 * 1024;
+    public static final int DEFAULT_PACK_KEY_HASH_PREFIX_LENGTH = 4;
+    public static final int DEFAULT_REF_SHARD_COUNT = 1;
+    public static final long DEFAULT_ASYNC_OPERATION_TIMEOUT = 30 * 1000;
 
     private final DynamoClient dynamoClient;
     private final AmazonS3 s3Client;
@@ -77,27 +116,78 @@ public class JGitAwsConfiguration {
     private final PackRepository packRepository;
     private final PackDescriptionRepository packDescriptionRepository;
     private final RefRepository refRepository;
+    private final ObjectIndexRepository objectIndexRepository;
+    private final PackCompactionScheduler packCompactionScheduler;
+    private final PackResidency packResidency;
+    private final JGitAwsAsyncClient asyncClient;
 
     private String configurationsTableName = DEFAULT_CONFIGURATIONS_TABLE_NAME;
     private String packDescriptionsTableName = DEFAULT_PACK_DESCRIPTIONS_TABLE_NAME;
     private String packsBucketName = DEFAULT_PACKS_BUCKET_NAME;
     private String refsTableName = DEFAULT_REFS_TABLE_NAME;
+    private String objectIndexTableName = DEFAULT_OBJECT_INDEX_TABLE_NAME;
     private int streamingBlockSize = DEFAULT_STREAMING_BLOCK_SIZE;
+    private int maximumReadAheadBlocks = DEFAULT_MAXIMUM_READ_AHEAD_BLOCKS;
+    private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+    private volatile S3BlockCache blockCache;
     private long initialConfigurationsTableReadThroughput = DEFAULT_CONFIGURATIONS_TABLE_READ_THROUGHPUT;
     private long initialConfigurationsTableWriteThroughput = DEFAULT_CONFIGURATIONS_TABLE_WRITE_THROUGHPUT;
     private long initialRefsTableReadThroughput = DEFAULT_REFS_TABLE_READ_THROUGHPUT;
     private long initialRefsTableWriteThroughput = DEFAULT_REFS_TABLE_WRITE_THROUGHPUT;
     private long initialPackDescriptionsTableReadThroughput = DEFAULT_PACK_DESCRIPTIONS_TABLE_READ_THROUGHPUT;
     private long initialPackDescriptionsTableWriteThroughput = DEFAULT_PACK_DESCRIPTIONS_TABLE_WRITE_THROUGHPUT;
+    private long initialObjectIndexTableReadThroughput = DEFAULT_OBJECT_INDEX_TABLE_READ_THROUGHPUT;
+    private long initialObjectIndexTableWriteThroughput = DEFAULT_OBJECT_INDEX_TABLE_WRITE_THROUGHPUT;
+    private long readBackBufferSpillThreshold = DEFAULT_READ_BACK_BUFFER_SPILL_THRESHOLD;
+    private boolean multipartUploadEnabled = false;
+    private int multipartUploadPartSize = DEFAULT_MULTIPART_UPLOAD_PART_SIZE;
+    private int maximumPartUploadsInFlight = DEFAULT_MAXIMUM_PART_UPLOADS_IN_FLIGHT;
+    private int maximumPartUploadAttempts = DEFAULT_MAXIMUM_PART_UPLOAD_ATTEMPTS;
+    private long maximumRefCacheAge = DEFAULT_MAXIMUM_REF_CACHE_AGE;
+    private boolean refSnapshotsEnabled = false;
+    private int refSnapshotCompactionThreshold = DEFAULT_REF_SNAPSHOT_COMPACTION_THRESHOLD;
+    private int maximumConcurrentRefUpdates = DEFAULT_MAXIMUM_CONCURRENT_REF_UPDATES;
+    private long maximumPackListCacheAge = DEFAULT_MAXIMUM_PACK_LIST_CACHE_AGE;
+    private Path localPackCacheDirectory;
+    private long localPackCacheSize = DEFAULT_LOCAL_PACK_CACHE_SIZE;
+    private LocalPackCache localPackCache;
+    private ExecutionModel executionModel;
+    private boolean packCompactionEnabled = false;
+    private int packCompactionThreshold = DEFAULT_PACK_COMPACTION_THRESHOLD;
+    private long packCompactionSmallPackSize = DEFAULT_PACK_COMPACTION_SMALL_PACK_SIZE;
+    private int garbageCollectionThreshold = DEFAULT_GARBAGE_COLLECTION_THRESHOLD;
+    private int maximumConcurrentPackCompactions = DEFAULT_MAXIMUM_CONCURRENT_PACK_COMPACTIONS;
+    private long replacedPackDeletionDelay = DEFAULT_REPLACED_PACK_DELETION_DELAY;
+    private int maximumConcurrentPackDeletes = DEFAULT_MAXIMUM_CONCURRENT_PACK_DELETES;
+    private int maximumPackDeleteAttempts = DEFAULT_MAXIMUM_PACK_DELETE_ATTEMPTS;
+    private boolean packBloomFiltersEnabled = false;
+    private int packBloomFilterBitsPerObject = DEFAULT_PACK_BLOOM_FILTER_BITS_PER_OBJECT;
+    private boolean objectIndexEnabled = false;
+    private int objectIndexShardPrefixLength = DEFAULT_OBJECT_INDEX_SHARD_PREFIX_LENGTH;
+    private long packResidencySize = DEFAULT_PACK_RESIDENCY_SIZE;
+    private long maximumPackResidencyAge = DEFAULT_MAXIMUM_PACK_RESIDENCY_AGE;
+    private boolean packInliningEnabled = false;
+    private int maximumInlinePackFileSize = DEFAULT_MAXIMUM_INLINE_PACK_FILE_SIZE;
+    private boolean hashedPackKeysEnabled = false;
+    private boolean hashedPackKeysPreviouslyEnabled = false;
+    private int packKeyHashPrefixLength = DEFAULT_PACK_KEY_HASH_PREFIX_LENGTH;
+    private int refShardCount = DEFAULT_REF_SHARD_COUNT;
+    private long asyncOperationTimeout = DEFAULT_ASYNC_OPERATION_TIMEOUT;
 
     public JGitAwsConfiguration(DynamoClient dynamoClient, AmazonS3 s3Client) {
         this.dynamoClient = dynamoClient;
         this.s3Client = s3Client;
+        setExecutionModel(ExecutionModel.bounded());
+        this.blockCache = new S3BlockCache(blockCacheSize);
 
         this.configurationRepository = new ConfigurationRepository(this);
         this.packRepository = new PackRepository(this);
         this.packDescriptionRepository = new PackDescriptionRepository(this);
         this.refRepository = new RefRepository(this);
+        this.objectIndexRepository = new ObjectIndexRepository(this);
+        this.packCompactionScheduler = new PackCompactionScheduler(this);
+        this.packResidency = new PackResidency(this);
+        this.asyncClient = new JGitAwsAsyncClient(this);
     }
 
     public JGitAwsConfiguration(AmazonDynamoDB dynamoClient, AmazonS3 s3Client) {
@@ -152,6 +242,22 @@ public class JGitAwsConfiguration {
         this.initialPackDescriptionsTableWriteThroughput = initialPackDescriptionsTableWriteThroughput;
     }
 
+    public long getInitialObjectIndexTableReadThroughput() {
+        return initialObjectIndexTableReadThroughput;
+    }
+
+    public void setInitialObjectIndexTableReadThroughput(long initialObjectIndexTableReadThroughput) {
+        this.initialObjectIndexTableReadThroughput = initialObjectIndexTableReadThroughput;
+    }
+
+    public long getInitialObjectIndexTableWriteThroughput() {
+        return initialObjectIndexTableWriteThroughput;
+    }
+
+    public void setInitialObjectIndexTableWriteThroughput(long initialObjectIndexTableWriteThroughput) {
+        this.initialObjectIndexTableWriteThroughput = initialObjectIndexTableWriteThroughput;
+    }
+
     public int getStreamingBlockSize() {
         return streamingBlockSize;
     }
@@ -160,6 +266,345 @@ public class JGitAwsConfiguration {
         this.streamingBlockSize = streamingBlockSize;
     }
 
+    public int getMaximumReadAheadBlocks() {
+        return maximumReadAheadBlocks;
+    }
+
+    public void setMaximumReadAheadBlocks(int maximumReadAheadBlocks) {
+        this.maximumReadAheadBlocks = maximumReadAheadBlocks;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+        this.blockCache = new S3BlockCache(blockCacheSize);
+    }
+
+    public S3BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public long getReadBackBufferSpillThreshold() {
+        return readBackBufferSpillThreshold;
+    }
+
+    public void setReadBackBufferSpillThreshold(long readBackBufferSpillThreshold) {
+        this.readBackBufferSpillThreshold = readBackBufferSpillThreshold;
+    }
+
+    public boolean isMultipartUploadEnabled() {
+        return multipartUploadEnabled;
+    }
+
+    public void setMultipartUploadEnabled(boolean multipartUploadEnabled) {
+        this.multipartUploadEnabled = multipartUploadEnabled;
+    }
+
+    public int getMultipartUploadPartSize() {
+        return multipartUploadPartSize;
+    }
+
+    public void setMultipartUploadPartSize(int multipartUploadPartSize) {
+        if (multipartUploadPartSize < MINIMUM_MULTIPART_UPLOAD_PART_SIZE) {
+            throw new IllegalArgumentException("S3 requires multipart upload parts of at least " +
+                    MINIMUM_MULTIPART_UPLOAD_PART_SIZE + " bytes");
+        }
+        this.multipartUploadPartSize = multipartUploadPartSize;
+    }
+
+    public int getMaximumPartUploadsInFlight() {
+        return maximumPartUploadsInFlight;
+    }
+
+    public void setMaximumPartUploadsInFlight(int maximumPartUploadsInFlight) {
+        this.maximumPartUploadsInFlight = maximumPartUploadsInFlight;
+    }
+
+    public int getMaximumPartUploadAttempts() {
+        return maximumPartUploadAttempts;
+    }
+
+    public void setMaximumPartUploadAttempts(int maximumPartUploadAttempts) {
+        this.maximumPartUploadAttempts = maximumPartUploadAttempts;
+    }
+
+    public long getMaximumRefCacheAge() {
+        return maximumRefCacheAge;
+    }
+
+    public void setMaximumRefCacheAge(long maximumRefCacheAge) {
+        this.maximumRefCacheAge = maximumRefCacheAge;
+    }
+
+    public boolean isRefSnapshotsEnabled() {
+        return refSnapshotsEnabled;
+    }
+
+    public void setRefSnapshotsEnabled(boolean refSnapshotsEnabled) {
+        this.refSnapshotsEnabled = refSnapshotsEnabled;
+    }
+
+    public int getRefSnapshotCompactionThreshold() {
+        return refSnapshotCompactionThreshold;
+    }
+
+    public void setRefSnapshotCompactionThreshold(int refSnapshotCompactionThreshold) {
+        this.refSnapshotCompactionThreshold = refSnapshotCompactionThreshold;
+    }
+
+    public int getMaximumConcurrentRefUpdates() {
+        return maximumConcurrentRefUpdates;
+    }
+
+    public void setMaximumConcurrentRefUpdates(int maximumConcurrentRefUpdates) {
+        this.maximumConcurrentRefUpdates = maximumConcurrentRefUpdates;
+    }
+
+    public long getMaximumPackListCacheAge() {
+        return maximumPackListCacheAge;
+    }
+
+    public void setMaximumPackListCacheAge(long maximumPackListCacheAge) {
+        this.maximumPackListCacheAge = maximumPackListCacheAge;
+    }
+
+    public Path getLocalPackCacheDirectory() {
+        return localPackCacheDirectory;
+    }
+
+    public synchronized void setLocalPackCacheDirectory(Path localPackCacheDirectory) {
+        this.localPackCacheDirectory = localPackCacheDirectory;
+        this.localPackCache = null;
+    }
+
+    public long getLocalPackCacheSize() {
+        return localPackCacheSize;
+    }
+
+    public synchronized void setLocalPackCacheSize(long localPackCacheSize) {
+        this.localPackCacheSize = localPackCacheSize;
+        this.localPackCache = null;
+    }
+
+    public synchronized LocalPackCache getLocalPackCache() throws IOException {
+        if (localPackCache == null && localPackCacheDirectory != null) {
+            localPackCache = new LocalPackCache(localPackCacheDirectory, localPackCacheSize);
+        }
+
+        return localPackCache;
+    }
+
+    public ExecutionModel getExecutionModel() {
+        return executionModel;
+    }
+
+    /**
+     * Replaces the pools that AWS calls are made on. The pools of the previous model are shut down; tasks already
+     * handed to them still run.
+     */
+    public void setExecutionModel(ExecutionModel executionModel) {
+        ExecutionModel previousExecutionModel = this.executionModel;
+        this.executionModel = executionModel;
+        this.dynamoClient.setScheduler(executionModel.getDynamoPool().getScheduler());
+
+        if (previousExecutionModel != null && previousExecutionModel != executionModel) {
+            previousExecutionModel.shutdown();
+        }
+    }
+
+    public boolean isPackCompactionEnabled() {
+        return packCompactionEnabled;
+    }
+
+    public void setPackCompactionEnabled(boolean packCompactionEnabled) {
+        this.packCompactionEnabled = packCompactionEnabled;
+    }
+
+    public int getPackCompactionThreshold() {
+        return packCompactionThreshold;
+    }
+
+    public void setPackCompactionThreshold(int packCompactionThreshold) {
+        this.packCompactionThreshold = packCompactionThreshold;
+    }
+
+    public long getPackCompactionSmallPackSize() {
+        return packCompactionSmallPackSize;
+    }
+
+    public void setPackCompactionSmallPackSize(long packCompactionSmallPackSize) {
+        this.packCompactionSmallPackSize = packCompactionSmallPackSize;
+    }
+
+    public int getGarbageCollectionThreshold() {
+        return garbageCollectionThreshold;
+    }
+
+    public void setGarbageCollectionThreshold(int garbageCollectionThreshold) {
+        this.garbageCollectionThreshold = garbageCollectionThreshold;
+    }
+
+    public int getMaximumConcurrentPackCompactions() {
+        return maximumConcurrentPackCompactions;
+    }
+
+    public void setMaximumConcurrentPackCompactions(int maximumConcurrentPackCompactions) {
+        this.maximumConcurrentPackCompactions = maximumConcurrentPackCompactions;
+    }
+
+    /**
+     * How long (in milliseconds) the files of packs that were replaced by a compaction are kept in S3 before they
+     * are deleted, so that readers that still have the old pack list can finish with them. A negative delay leaves
+     * the files in S3.
+     */
+    public long getReplacedPackDeletionDelay() {
+        return replacedPackDeletionDelay;
+    }
+
+    public void setReplacedPackDeletionDelay(long replacedPackDeletionDelay) {
+        this.replacedPackDeletionDelay = replacedPackDeletionDelay;
+    }
+
+    public int getMaximumConcurrentPackDeletes() {
+        return maximumConcurrentPackDeletes;
+    }
+
+    public void setMaximumConcurrentPackDeletes(int maximumConcurrentPackDeletes) {
+        this.maximumConcurrentPackDeletes = maximumConcurrentPackDeletes;
+    }
+
+    public int getMaximumPackDeleteAttempts() {
+        return maximumPackDeleteAttempts;
+    }
+
+    public void setMaximumPackDeleteAttempts(int maximumPackDeleteAttempts) {
+        this.maximumPackDeleteAttempts = maximumPackDeleteAttempts;
+    }
+
+    public boolean isPackBloomFiltersEnabled() {
+        return packBloomFiltersEnabled;
+    }
+
+    public void setPackBloomFiltersEnabled(boolean packBloomFiltersEnabled) {
+        this.packBloomFiltersEnabled = packBloomFiltersEnabled;
+    }
+
+    public int getPackBloomFilterBitsPerObject() {
+        return packBloomFilterBitsPerObject;
+    }
+
+    public void setPackBloomFilterBitsPerObject(int packBloomFilterBitsPerObject) {
+        this.packBloomFilterBitsPerObject = packBloomFilterBitsPerObject;
+    }
+
+    public boolean isObjectIndexEnabled() {
+        return objectIndexEnabled;
+    }
+
+    public void setObjectIndexEnabled(boolean objectIndexEnabled) {
+        this.objectIndexEnabled = objectIndexEnabled;
+    }
+
+    public int getObjectIndexShardPrefixLength() {
+        return objectIndexShardPrefixLength;
+    }
+
+    public void setObjectIndexShardPrefixLength(int objectIndexShardPrefixLength) {
+        this.objectIndexShardPrefixLength = objectIndexShardPrefixLength;
+    }
+
+    public long getPackResidencySize() {
+        return packResidencySize;
+    }
+
+    public void setPackResidencySize(long packResidencySize) {
+        this.packResidencySize = packResidencySize;
+    }
+
+    public long getMaximumPackResidencyAge() {
+        return maximumPackResidencyAge;
+    }
+
+    public void setMaximumPackResidencyAge(long maximumPackResidencyAge) {
+        this.maximumPackResidencyAge = maximumPackResidencyAge;
+    }
+
+    public boolean isPackInliningEnabled() {
+        return packInliningEnabled;
+    }
+
+    public void setPackInliningEnabled(boolean packInliningEnabled) {
+        this.packInliningEnabled = packInliningEnabled;
+    }
+
+    public int getMaximumInlinePackFileSize() {
+        return maximumInlinePackFileSize;
+    }
+
+    public void setMaximumInlinePackFileSize(int maximumInlinePackFileSize) {
+        this.maximumInlinePackFileSize = maximumInlinePackFileSize;
+    }
+
+    public boolean isHashedPackKeysEnabled() {
+        return hashedPackKeysEnabled;
+    }
+
+    public void setHashedPackKeysEnabled(boolean hashedPackKeysEnabled) {
+        this.hashedPackKeysEnabled = hashedPackKeysEnabled;
+    }
+
+    /**
+     * Whether hashed pack keys were enabled before and have since been turned off, so that the bucket may still have
+     * pack files stored with hashed keys. Only then (or while hashed keys are enabled) are both key layouts checked
+     * when opening a pack file.
+     */
+    public boolean isHashedPackKeysPreviouslyEnabled() {
+        return hashedPackKeysPreviouslyEnabled;
+    }
+
+    public void setHashedPackKeysPreviouslyEnabled(boolean hashedPackKeysPreviouslyEnabled) {
+        this.hashedPackKeysPreviouslyEnabled = hashedPackKeysPreviouslyEnabled;
+    }
+
+    public int getPackKeyHashPrefixLength() {
+        return packKeyHashPrefixLength;
+    }
+
+    public void setPackKeyHashPrefixLength(int packKeyHashPrefixLength) {
+        this.packKeyHashPrefixLength = packKeyHashPrefixLength;
+    }
+
+    public int getRefShardCount() {
+        return refShardCount;
+    }
+
+    public void setRefShardCount(int refShardCount) {
+        this.refShardCount = refShardCount;
+    }
+
+    public long getAsyncOperationTimeout() {
+        return asyncOperationTimeout;
+    }
+
+    public void setAsyncOperationTimeout(long asyncOperationTimeout) {
+        this.asyncOperationTimeout = asyncOperationTimeout;
+    }
+
+    public PackCompactionScheduler getPackCompactionScheduler() {
+        return packCompactionScheduler;
+    }
+
+    public PackResidency getPackResidency() {
+        return packResidency;
+    }
+
+    public JGitAwsAsyncClient getAsyncClient() {
+        return asyncClient;
+    }
+
     public String getPacksBucketName() {
         return packsBucketName;
     }
@@ -180,6 +625,10 @@ public class JGitAwsConfiguration {
         return packDescriptionRepository;
     }
 
+    public ObjectIndexRepository getObjectIndexRepository() {
+        return objectIndexRepository;
+    }
+
     public RefRepository getRefRepository() {
         return refRepository;
     }
@@ -206,6 +655,15 @@ public class JGitAwsConfiguration {
         return this;
     }
 
+    public String getObjectIndexTableName() {
+        return objectIndexTableName;
+    }
+
+    public JGitAwsConfiguration setObjectIndexTableName(String objectIndexTableName) {
+        this.objectIndexTableName = objectIndexTableName;
+        return this;
+    }
+
     public String getRefsTableName() {
         return refsTableName;
     }
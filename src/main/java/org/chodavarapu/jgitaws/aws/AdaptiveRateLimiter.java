@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.aws;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits the rate (in capacity units per second) at which requests are sent to a DynamoDB table,
+ * and adapts that rate to what the table can actually sustain. The rate grows quickly while no throttling is seen,
+ * is halved every time a request is throttled, and from then on grows by a fixed amount per successful request, the
+ * same way TCP finds the available bandwidth of a connection.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class AdaptiveRateLimiter {
+    public static final double DEFAULT_INITIAL_RATE = 100;
+    public static final double DEFAULT_MINIMUM_RATE = 1;
+    public static final double DEFAULT_MAXIMUM_RATE = 40000;
+
+    private static final double ADDITIVE_INCREASE = 1;
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+
+    private final double minimumRate;
+    private final double maximumRate;
+    private double rate;
+    private double slowStartThreshold;
+    private double tokens;
+    private long lastRefillTime;
+    private long throttleCount;
+
+    public AdaptiveRateLimiter() {
+        this(DEFAULT_INITIAL_RATE, DEFAULT_MINIMUM_RATE, DEFAULT_MAXIMUM_RATE);
+    }
+
+    public AdaptiveRateLimiter(double initialRate, double minimumRate, double maximumRate) {
+        this.minimumRate = minimumRate;
+        this.maximumRate = maximumRate;
+        this.rate = initialRate;
+        this.slowStartThreshold = maximumRate;
+        this.tokens = initialRate;
+        this.lastRefillTime = System.nanoTime();
+        this.throttleCount = 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(rate, 1), tokens + rate * (now - lastRefillTime) / TimeUnit.SECONDS.toNanos(1));
+        lastRefillTime = now;
+    }
+
+    private synchronized long reserve(double units) {
+        refill();
+        tokens -= units;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public void acquire(double units) throws InterruptedException {
+        long waitTime = reserve(units);
+        if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitTime);
+        }
+    }
+
+    public synchronized void onSuccess(double reservedUnits, double consumedUnits) {
+        refill();
+        tokens -= consumedUnits - reservedUnits;
+
+        if (rate < slowStartThreshold) {
+            rate += Math.max(consumedUnits, ADDITIVE_INCREASE);
+        } else {
+            rate += ADDITIVE_INCREASE;
+        }
+        rate = Math.min(rate, maximumRate);
+    }
+
+    public synchronized void onThrottle() {
+        refill();
+        throttleCount++;
+        rate = Math.max(minimumRate, rate * MULTIPLICATIVE_DECREASE);
+        slowStartThreshold = rate;
+        tokens = Math.min(tokens, 0);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+}
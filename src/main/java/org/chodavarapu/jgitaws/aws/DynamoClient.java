@@ -46,53 +46,198 @@
  */
 package org.chodavarapu.jgitaws.aws;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DeleteItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.BatchWriteItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 import rx.Observable;
+import rx.Scheduler;
 import rx.schedulers.Schedulers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import rx.util.async.Async;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class DynamoClient {
+    private static final Logger logger = LoggerFactory.getLogger(DynamoClient.class);
+
+    public static final int DEFAULT_MAXIMUM_BATCH_WRITE_ATTEMPTS = 10;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAXIMUM_BACKOFF_MILLIS = 10000;
+
     private final AmazonDynamoDB dynamoClient;
     private final DynamoDB dynamoDb;
+    private final Map<String, AdaptiveRateLimiter> writeRateLimiters;
+    private final ItemCache itemCache;
+    private volatile Scheduler scheduler;
+    private volatile int maximumBatchWriteAttempts;
 
     public DynamoClient(AmazonDynamoDB dynamoClient) {
         this.dynamoClient = dynamoClient;
         this.dynamoDb = new DynamoDB(dynamoClient);
+        this.writeRateLimiters = new ConcurrentHashMap<>();
+        this.itemCache = new ItemCache();
+        this.scheduler = Schedulers.io();
+        this.maximumBatchWriteAttempts = DEFAULT_MAXIMUM_BATCH_WRITE_ATTEMPTS;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public int getMaximumBatchWriteAttempts() {
+        return maximumBatchWriteAttempts;
+    }
+
+    public void setMaximumBatchWriteAttempts(int maximumBatchWriteAttempts) {
+        this.maximumBatchWriteAttempts = maximumBatchWriteAttempts;
+    }
+
+    public ItemCache getItemCache() {
+        return itemCache;
+    }
+
+    public AdaptiveRateLimiter getWriteRateLimiter(String tableName) {
+        return writeRateLimiters.computeIfAbsent(tableName, name -> new AdaptiveRateLimiter());
     }
 
     public Observable<Item> getItem(String tableName, PrimaryKey primaryKey) {
+        Optional<Item> cachedItem = itemCache.getItem(tableName, primaryKey.getComponents());
+        if (cachedItem != null) {
+            return Observable.just(cachedItem.orElse(null));
+        }
+
         return Async.fromCallable(() -> {
+            long readToken = itemCache.startRead(tableName);
             try {
-                return dynamoDb.getTable(tableName).getItem(primaryKey);
+                Item item = dynamoDb.getTable(tableName).getItem(primaryKey);
+                itemCache.putItem(tableName, primaryKey.getComponents(), item, readToken);
+                return item;
             } catch (ResourceNotFoundException e) {
                 return null;
             }
-        }, Schedulers.io());
+        }, scheduler);
     }
 
-    public Observable<Item> getAllItems(String tableName, QuerySpec querySpec) {
+    /**
+     * Reads an item, from the item cache if the read is not consistent and doesn't project only some attributes.
+     */
+    public Observable<Item> getItem(String tableName, GetItemSpec getItemSpec) {
+        boolean cacheable = getItemSpec.getProjectionExpression() == null && getItemSpec.getAttributesToGet() == null;
+        boolean consistent = Boolean.TRUE.equals(getItemSpec.isConsistentRead());
+
+        if (cacheable && !consistent) {
+            Optional<Item> cachedItem = itemCache.getItem(tableName, getItemSpec.getKeyComponents());
+            if (cachedItem != null) {
+                return Observable.just(cachedItem.orElse(null));
+            }
+        }
+
         return Async.fromCallable(() -> {
+            long readToken = itemCache.startRead(tableName);
             try {
-                return dynamoDb.getTable(tableName).query(querySpec);
+                Item item = dynamoDb.getTable(tableName).getItem(getItemSpec);
+                if (cacheable) {
+                    itemCache.putItem(tableName, getItemSpec.getKeyComponents(), item, readToken);
+                }
+                return item;
             } catch (ResourceNotFoundException e) {
                 return null;
             }
-        }, Schedulers.io())
+        }, scheduler);
+    }
+
+    /**
+     * Describes a table, or returns null if the table doesn't exist.
+     */
+    public Observable<TableDescription> describeTable(String tableName) {
+        return Async.fromCallable(() -> {
+            try {
+                return dynamoDb.getTable(tableName).describe();
+            } catch (ResourceNotFoundException e) {
+                return null;
+            }
+        }, scheduler);
+    }
+
+    private List<Item> query(String tableName, String indexName, QuerySpec querySpec) {
+        long readToken = itemCache.startRead(tableName);
+
+        ItemCollection<QueryOutcome> itemCollection = indexName == null ?
+                dynamoDb.getTable(tableName).query(querySpec) :
+                dynamoDb.getTable(tableName).getIndex(indexName).query(querySpec);
+
+        List<Item> items = new ArrayList<>();
+        for (Item item : itemCollection) {
+            items.add(item);
+        }
+
+        itemCache.putQueryResults(tableName, indexName, querySpec, items, readToken);
+        return items;
+    }
+
+    public Observable<Item> getAllItems(String tableName, QuerySpec querySpec) {
+        return getAllItems(tableName, null, querySpec);
+    }
+
+    /**
+     * Queries a table, or one of its indexes if the index name is not null. Results of queries that are not
+     * consistent are served from the item cache when it has them.
+     */
+    public Observable<Item> getAllItems(String tableName, String indexName, QuerySpec querySpec) {
+        Observable<? extends Iterable<Item>> items;
+        if (itemCache.isEnabled(tableName)) {
+            List<Item> cachedItems = itemCache.getQueryResults(tableName, indexName, querySpec);
+            if (cachedItems != null) {
+                return Observable.from(cachedItems);
+            }
+
+            items = Async.fromCallable(() -> query(tableName, indexName, querySpec), scheduler);
+        } else {
+            // Pages are only fetched as they are consumed
+            items = Async.fromCallable(() -> indexName == null ?
+                    dynamoDb.getTable(tableName).query(querySpec) :
+                    dynamoDb.getTable(tableName).getIndex(indexName).query(querySpec), scheduler);
+        }
+
+        return items
                 .flatMap(itemCollection -> Observable.from(itemCollection))
                 .onErrorResumeNext(t -> {
                     if (t instanceof ResourceNotFoundException) {
@@ -112,28 +257,197 @@ public class DynamoClient {
                 TableUtils.waitUntilActive(dynamoClient, tableCreator.get().getTableName());
                 return updater.get();
             }
-        }, Schedulers.io())
+        }, scheduler)
                 .map(o -> null);
     }
 
     public Observable<Void> deleteItem(String tableName, DeleteItemSpec deleteItemSpec) {
         return Async.fromCallable(() -> {
             try {
-                return dynamoDb.getTable(tableName).deleteItem(deleteItemSpec);
+                DeleteItemOutcome outcome = dynamoDb.getTable(tableName).deleteItem(deleteItemSpec);
+                itemCache.onItemWritten(tableName, deleteItemSpec.getKeyComponents(), null);
+                return outcome;
             } catch (ResourceNotFoundException e) {
                 return null;
+            } catch (RuntimeException e) {
+                itemCache.invalidate(tableName, deleteItemSpec.getKeyComponents());
+                throw e;
             }
-        }, Schedulers.io())
+        }, scheduler)
                 .map(o -> null);
     }
 
+    /**
+     * Copies an update with different return values, leaving the caller's spec as it is.
+     */
+    private static UpdateItemSpec withReturnValues(UpdateItemSpec spec, ReturnValue returnValues) {
+        UpdateItemSpec copy = new UpdateItemSpec()
+                .withPrimaryKey(spec.getKeyComponents().toArray(new KeyAttribute[spec.getKeyComponents().size()]))
+                .withUpdateExpression(spec.getUpdateExpression())
+                .withConditionExpression(spec.getConditionExpression())
+                .withNameMap(spec.getNameMap())
+                .withValueMap(spec.getValueMap())
+                .withReturnConsumedCapacity(spec.getReturnConsumedCapacity())
+                .withReturnItemCollectionMetrics(spec.getReturnItemCollectionMetrics())
+                .withReturnValues(returnValues)
+                .withProgressListener(spec.getProgressListener())
+                .withRequestMetricCollector(spec.getRequestMetricCollector());
+
+        if (spec.getAttributeUpdate() != null) {
+            copy.withAttributeUpdate(spec.getAttributeUpdate());
+        }
+        if (spec.getExpected() != null) {
+            copy.withExpected(spec.getExpected());
+        }
+        return copy;
+    }
+
+    /**
+     * Updates an item. If the table is cached the item as it is after the update is returned by DynamoDB (unless the
+     * caller asked for other return values) and written through to the item cache. The given spec isn't changed.
+     */
     public Observable<Void> updateItem(String tableName, UpdateItemSpec updateItemSpec,
                                        Supplier<CreateTableRequest> tableCreator) {
-        return update(() -> dynamoDb.getTable(tableName).updateItem(updateItemSpec), tableCreator);
+        boolean writeThrough = itemCache.isEnabled(tableName) && updateItemSpec.getReturnValues() == null;
+        UpdateItemSpec spec = writeThrough ? withReturnValues(updateItemSpec, ReturnValue.ALL_NEW) : updateItemSpec;
+
+        return update(() -> {
+            try {
+                UpdateItemOutcome outcome = dynamoDb.getTable(tableName).updateItem(spec);
+                if (writeThrough) {
+                    itemCache.onItemWritten(tableName, updateItemSpec.getKeyComponents(), outcome.getItem());
+                } else {
+                    itemCache.invalidate(tableName, updateItemSpec.getKeyComponents());
+                }
+                return outcome;
+            } catch (RuntimeException e) {
+                itemCache.invalidate(tableName, updateItemSpec.getKeyComponents());
+                throw e;
+            }
+        }, tableCreator);
     }
 
     public Observable<Void> updateItems(TableWriteItems tableWriteItems,
                                         Supplier<CreateTableRequest> tableCreator) {
-        return update(() -> dynamoDb.batchWriteItem(tableWriteItems), tableCreator);
+        return update(() -> {
+            try {
+                batchWriteItems(tableWriteItems);
+            } catch (RuntimeException e) {
+                // Some of the writes may have been made, and the keys of the items put aren't known
+                itemCache.invalidate(tableWriteItems.getTableName());
+                throw e;
+            }
+            updateItemCache(tableWriteItems);
+            return null;
+        }, tableCreator);
+    }
+
+    private void updateItemCache(TableWriteItems tableWriteItems) {
+        String tableName = tableWriteItems.getTableName();
+        if (!itemCache.isEnabled(tableName)) {
+            return;
+        }
+
+        if (tableWriteItems.getItemsToPut() != null) {
+            for (Item item : tableWriteItems.getItemsToPut()) {
+                itemCache.onItemPut(tableName, item);
+            }
+        }
+
+        if (tableWriteItems.getPrimaryKeysToDelete() != null) {
+            for (PrimaryKey primaryKey : tableWriteItems.getPrimaryKeysToDelete()) {
+                itemCache.onItemWritten(tableName, primaryKey.getComponents(), null);
+            }
+        }
+    }
+
+    private static int writeRequestCount(TableWriteItems tableWriteItems) {
+        return (tableWriteItems.getItemsToPut() == null ? 0 : tableWriteItems.getItemsToPut().size()) +
+                (tableWriteItems.getPrimaryKeysToDelete() == null ? 0 : tableWriteItems.getPrimaryKeysToDelete().size());
+    }
+
+    private static int writeRequestCount(Map<String, List<WriteRequest>> requestItems) {
+        return requestItems.values().stream().mapToInt(List::size).sum();
+    }
+
+    private static double consumedCapacity(BatchWriteItemResult result, String tableName, int writeRequestCount) {
+        if (result.getConsumedCapacity() != null) {
+            for (ConsumedCapacity capacity : result.getConsumedCapacity()) {
+                if (tableName.equals(capacity.getTableName()) && capacity.getCapacityUnits() != null) {
+                    return capacity.getCapacityUnits();
+                }
+            }
+        }
+
+        return writeRequestCount;
+    }
+
+    private static void backOff(int attempt) {
+        try {
+            Backoff.sleep(BASE_BACKOFF_MILLIS, MAXIMUM_BACKOFF_MILLIS, attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while retrying batch write", e);
+        }
+    }
+
+    private Void batchWriteItems(TableWriteItems tableWriteItems) {
+        String tableName = tableWriteItems.getTableName();
+        AdaptiveRateLimiter rateLimiter = getWriteRateLimiter(tableName);
+
+        int requestCount = writeRequestCount(tableWriteItems);
+        Map<String, List<WriteRequest>> unprocessedItems = null;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                rateLimiter.acquire(requestCount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while waiting to write to " + tableName, e);
+            }
+
+            BatchWriteItemResult result;
+            try {
+                if (unprocessedItems == null) {
+                    BatchWriteItemOutcome outcome = dynamoDb.batchWriteItem(new BatchWriteItemSpec()
+                            .withTableWriteItems(tableWriteItems)
+                            .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                    result = outcome.getBatchWriteItemResult();
+                } else {
+                    result = dynamoClient.batchWriteItem(new BatchWriteItemRequest()
+                            .withRequestItems(unprocessedItems)
+                            .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                }
+            } catch (ProvisionedThroughputExceededException e) {
+                rateLimiter.onThrottle();
+                if (attempt >= maximumBatchWriteAttempts) {
+                    throw e;
+                }
+
+                logger.debug("Batch write of {} items to {} was throttled, retrying (attempt {})",
+                        requestCount, tableName, attempt);
+                backOff(attempt);
+                continue;
+            }
+
+            rateLimiter.onSuccess(requestCount, consumedCapacity(result, tableName, requestCount));
+
+            if (result.getUnprocessedItems() == null || result.getUnprocessedItems().isEmpty()) {
+                return null;
+            }
+
+            unprocessedItems = result.getUnprocessedItems();
+            requestCount = writeRequestCount(unprocessedItems);
+            rateLimiter.onThrottle();
+
+            if (attempt >= maximumBatchWriteAttempts) {
+                throw new AmazonClientException("Unable to write " + requestCount + " items to " + tableName +
+                        " after " + attempt + " attempts");
+            }
+
+            logger.debug("{} items of batch write to {} were not processed, retrying (attempt {})",
+                    requestCount, tableName, attempt);
+            backOff(attempt);
+        }
     }
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.aws;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which threads the blocking DynamoDB and S3 calls are made on. DynamoDB calls, S3 reads and S3 writes each
+ * get their own pool so that one kind of traffic can't starve the others. Tasks that make DynamoDB or S3 calls
+ * themselves and wait for them (like applying a group of ref updates) run on a separate blocking pool: run on the
+ * DynamoDB or S3 pools, they would hold threads while waiting for calls queued behind them on the same pool. Pack
+ * compactions and the indexing of committed packs each run on a pool of their own, with low priority threads, so
+ * that they only use what the other pools leave over.
+ * <p>
+ * The bounded model uses fixed size pools with bounded queues. When the DynamoDB or S3 read pool is full the calling
+ * thread runs the task itself, which slows callers down instead of growing the number of threads. When the S3 write
+ * pool is full the caller waits for space in the queue instead, because an upload may be consuming data that the
+ * calling thread has not written yet. When the compaction or indexing pool is full further tasks are rejected, as
+ * running them on the calling thread would hold up the commit that triggered them. The virtual thread model runs every
+ * task on its own virtual thread and needs Java 21 or later.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class ExecutionModel {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_DYNAMO_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_S3_READ_THREADS = 8 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_S3_WRITE_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_BLOCKING_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_COMPACTION_THREADS = 2;
+    public static final int DEFAULT_INDEXING_THREADS = 2;
+
+    private final Pool dynamoPool;
+    private final Pool s3ReadPool;
+    private final Pool s3WritePool;
+    private final Pool blockingPool;
+    private final Pool compactionPool;
+    private final Pool indexingPool;
+
+    private ExecutionModel(Pool dynamoPool, Pool s3ReadPool, Pool s3WritePool, Pool blockingPool,
+                           Pool compactionPool, Pool indexingPool) {
+        this.dynamoPool = dynamoPool;
+        this.s3ReadPool = s3ReadPool;
+        this.s3WritePool = s3WritePool;
+        this.blockingPool = blockingPool;
+        this.compactionPool = compactionPool;
+        this.indexingPool = indexingPool;
+    }
+
+    public static ExecutionModel bounded() {
+        return bounded(DEFAULT_DYNAMO_THREADS, DEFAULT_S3_READ_THREADS, DEFAULT_S3_WRITE_THREADS,
+                DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public static ExecutionModel bounded(int dynamoThreads, int s3ReadThreads, int s3WriteThreads,
+                                         int queueCapacity) {
+        return bounded(dynamoThreads, s3ReadThreads, s3WriteThreads, DEFAULT_BLOCKING_THREADS, queueCapacity);
+    }
+
+    public static ExecutionModel bounded(int dynamoThreads, int s3ReadThreads, int s3WriteThreads,
+                                         int blockingThreads, int queueCapacity) {
+        return bounded(dynamoThreads, s3ReadThreads, s3WriteThreads, blockingThreads, DEFAULT_COMPACTION_THREADS,
+                queueCapacity);
+    }
+
+    public static ExecutionModel bounded(int dynamoThreads, int s3ReadThreads, int s3WriteThreads,
+                                         int blockingThreads, int compactionThreads, int queueCapacity) {
+        return bounded(dynamoThreads, s3ReadThreads, s3WriteThreads, blockingThreads, compactionThreads,
+                DEFAULT_INDEXING_THREADS, queueCapacity);
+    }
+
+    public static ExecutionModel bounded(int dynamoThreads, int s3ReadThreads, int s3WriteThreads,
+                                         int blockingThreads, int compactionThreads, int indexingThreads,
+                                         int queueCapacity) {
+        return new ExecutionModel(
+                Pool.bounded("jga-dynamo", dynamoThreads, queueCapacity,
+                        Saturation.CALLER_RUNS, Thread.NORM_PRIORITY),
+                Pool.bounded("jga-s3-read", s3ReadThreads, queueCapacity,
+                        Saturation.CALLER_RUNS, Thread.NORM_PRIORITY),
+                Pool.bounded("jga-s3-write", s3WriteThreads, queueCapacity,
+                        Saturation.CALLER_WAITS, Thread.NORM_PRIORITY),
+                Pool.bounded("jga-blocking", blockingThreads, queueCapacity,
+                        Saturation.CALLER_RUNS, Thread.NORM_PRIORITY),
+                Pool.bounded("jga-compaction", compactionThreads, queueCapacity,
+                        Saturation.REJECT, Thread.MIN_PRIORITY),
+                Pool.bounded("jga-indexing", indexingThreads, queueCapacity,
+                        Saturation.REJECT, Thread.MIN_PRIORITY));
+    }
+
+    public static ExecutionModel virtualThreadPerTask() {
+        return new ExecutionModel(
+                Pool.virtual("jga-dynamo"),
+                Pool.virtual("jga-s3-read"),
+                Pool.virtual("jga-s3-write"),
+                Pool.virtual("jga-blocking"),
+                Pool.virtual("jga-compaction"),
+                Pool.virtual("jga-indexing"));
+    }
+
+    public Pool getDynamoPool() {
+        return dynamoPool;
+    }
+
+    public Pool getS3ReadPool() {
+        return s3ReadPool;
+    }
+
+    public Pool getS3WritePool() {
+        return s3WritePool;
+    }
+
+    public Pool getBlockingPool() {
+        return blockingPool;
+    }
+
+    public Pool getCompactionPool() {
+        return compactionPool;
+    }
+
+    public Pool getIndexingPool() {
+        return indexingPool;
+    }
+
+    public void shutdown() {
+        dynamoPool.shutdown();
+        s3ReadPool.shutdown();
+        s3WritePool.shutdown();
+        blockingPool.shutdown();
+        compactionPool.shutdown();
+        indexingPool.shutdown();
+    }
+
+    private enum Saturation {
+        CALLER_RUNS,
+        CALLER_WAITS,
+        REJECT
+    }
+
+    public static class Pool implements Executor {
+        private final String name;
+        private final ExecutorService executor;
+        private final ThreadPoolExecutor boundedExecutor;
+        private final Scheduler scheduler;
+        private final AtomicInteger inFlightCount = new AtomicInteger();
+        private final AtomicLong completedCount = new AtomicLong();
+        private final AtomicLong callerRunsCount = new AtomicLong();
+        private final AtomicLong callerWaitsCount = new AtomicLong();
+
+        private Pool(String name, ExecutorService executor, ThreadPoolExecutor boundedExecutor) {
+            this.name = name;
+            this.executor = executor;
+            this.boundedExecutor = boundedExecutor;
+            this.scheduler = Schedulers.from(this);
+        }
+
+        private static Pool bounded(String name, int threads, int queueCapacity, Saturation saturation,
+                                    int priority) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity),
+                    daemonThreadFactory(name, priority));
+            executor.allowCoreThreadTimeOut(true);
+
+            Pool pool = new Pool(name, executor, executor);
+            executor.setRejectedExecutionHandler(pool.new SaturationPolicy(saturation));
+            return pool;
+        }
+
+        private static Pool virtual(String name) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                return new Pool(name, executor, null);
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual thread executor", e);
+            }
+        }
+
+        private static ThreadFactory daemonThreadFactory(String name, int priority) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            };
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            inFlightCount.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlightCount.decrementAndGet();
+                        completedCount.incrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlightCount.decrementAndGet();
+                throw e;
+            }
+        }
+
+        public Scheduler getScheduler() {
+            return scheduler;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Whether every thread of the pool is busy, so that optional work (like read-ahead) should be skipped rather
+         * than queued. A virtual thread pool is never saturated.
+         */
+        public boolean isSaturated() {
+            return boundedExecutor != null && inFlightCount.get() >= boundedExecutor.getMaximumPoolSize();
+        }
+
+        public int getQueueDepth() {
+            return boundedExecutor == null ? 0 : boundedExecutor.getQueue().size();
+        }
+
+        public int getInFlightCount() {
+            return inFlightCount.get();
+        }
+
+        public long getCompletedCount() {
+            return completedCount.get();
+        }
+
+        public long getCallerRunsCount() {
+            return callerRunsCount.get();
+        }
+
+        public long getCallerWaitsCount() {
+            return callerWaitsCount.get();
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        private class SaturationPolicy implements RejectedExecutionHandler {
+            private final Saturation saturation;
+
+            private SaturationPolicy(Saturation saturation) {
+                this.saturation = saturation;
+            }
+
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException(name + " pool has been shut down");
+                }
+
+                if (saturation == Saturation.REJECT) {
+                    throw new RejectedExecutionException(name + " pool is full");
+                } else if (saturation == Saturation.CALLER_WAITS) {
+                    callerWaitsCount.incrementAndGet();
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for " + name + " pool", e);
+                    }
+                } else {
+                    callerRunsCount.incrementAndGet();
+                    task.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.aws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of the results of the GetItem and Query calls made through {@link DynamoClient}, kept up to date
+ * by the writes made through the same client. Caching is enabled per table by giving the table a time to live, and
+ * each table keeps at most {@link #getMaximumEntriesPerTable()} results, evicting the least recently used ones.
+ * <p>
+ * Writes from other processes are only seen once the cached results expire, so a table should only be cached when
+ * reads of it can tolerate that much staleness; consistent reads always bypass the cache. A write to an item replaces
+ * the cached item and drops the cached query results for the hash key of the item. The invalidate methods can be used
+ * when a table is known to have been changed elsewhere.
+ * <p>
+ * The key schema of a table isn't known up front, so it is learned from the keys of the items and queries that are
+ * read. Items written by a batch write can only be cached once a single item of the table has been read by its key.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class ItemCache {
+    public static final int DEFAULT_MAXIMUM_ENTRIES_PER_TABLE = 10000;
+
+    private static final String ITEM = "I";
+    private static final String QUERY = "Q";
+
+    private final ConcurrentHashMap<String, TableCache> tables = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile int maximumEntriesPerTable = DEFAULT_MAXIMUM_ENTRIES_PER_TABLE;
+
+    public int getMaximumEntriesPerTable() {
+        return maximumEntriesPerTable;
+    }
+
+    /**
+     * Sets the number of results kept per table. Only applies to tables whose time to live is set afterwards.
+     */
+    public void setMaximumEntriesPerTable(int maximumEntriesPerTable) {
+        this.maximumEntriesPerTable = maximumEntriesPerTable;
+    }
+
+    /**
+     * Enables caching of the given table, or disables it if the time to live is zero. Anything cached for the table
+     * so far is dropped.
+     */
+    public void setTimeToLive(String tableName, long timeToLive) {
+        if (timeToLive > 0) {
+            tables.put(tableName, new TableCache(timeToLive, maximumEntriesPerTable));
+        } else {
+            tables.remove(tableName);
+        }
+    }
+
+    public long getTimeToLive(String tableName) {
+        TableCache cache = tables.get(tableName);
+        return cache == null ? 0 : cache.timeToLive;
+    }
+
+    public boolean isEnabled(String tableName) {
+        return tables.containsKey(tableName);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns a token to pass to the put methods along with the result of a read, so that a result read before a
+     * write completed doesn't replace what the write cached.
+     */
+    long startRead(String tableName) {
+        TableCache cache = tables.get(tableName);
+        return cache == null ? 0 : cache.generation.get();
+    }
+
+    /**
+     * Returns the cached item with the given key (which is empty if the item is known not to exist), or null if
+     * there is nothing cached for the key.
+     */
+    Optional<Item> getItem(String tableName, Collection<KeyAttribute> key) {
+        TableCache cache = tables.get(tableName);
+        if (cache == null) {
+            return null;
+        }
+
+        cache.keyNames.addAll(keyNames(key));
+        Object[] value = cache.get(itemKey(key));
+        if (value == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return Optional.ofNullable((Item) value[0]);
+    }
+
+    void putItem(String tableName, Collection<KeyAttribute> key, Item item, long readToken) {
+        TableCache cache = tables.get(tableName);
+        if (cache != null) {
+            cache.put(itemKey(key), item, readToken);
+        }
+    }
+
+    /**
+     * Returns the cached results of the given query, or null if there are none (or the query can't be cached).
+     */
+    List<Item> getQueryResults(String tableName, String indexName, QuerySpec querySpec) {
+        TableCache cache = tables.get(tableName);
+        List<Object> key = queryKey(indexName, querySpec);
+        if (cache == null || key == null) {
+            return null;
+        }
+
+        cache.hashKeyNames.add(querySpec.getHashKey().getName());
+        Object[] value = cache.get(key);
+        if (value == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        @SuppressWarnings("unchecked")
+        List<Item> items = (List<Item>) value[0];
+        return items;
+    }
+
+    void putQueryResults(String tableName, String indexName, QuerySpec querySpec, List<Item> items, long readToken) {
+        TableCache cache = tables.get(tableName);
+        List<Object> key = queryKey(indexName, querySpec);
+        if (cache != null && key != null) {
+            cache.put(key, Collections.unmodifiableList(items), readToken);
+        }
+    }
+
+    /**
+     * Records the result of a write of a single item: the item as it is after the write, or null if it was deleted.
+     */
+    void onItemWritten(String tableName, Collection<KeyAttribute> key, Item item) {
+        TableCache cache = tables.get(tableName);
+        if (cache != null) {
+            cache.generation.incrementAndGet();
+            cache.put(itemKey(key), item, cache.generation.get());
+            for (KeyAttribute component : key) {
+                cache.removeQueries(component.getName(), component.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records an item put by a batch write, whose key attributes aren't known to the caller.
+     */
+    void onItemPut(String tableName, Item item) {
+        TableCache cache = tables.get(tableName);
+        if (cache == null) {
+            return;
+        }
+
+        cache.generation.incrementAndGet();
+
+        List<KeyAttribute> key = new ArrayList<>();
+        for (String keyName : cache.keyNames) {
+            if (item.isPresent(keyName)) {
+                key.add(new KeyAttribute(keyName, item.get(keyName)));
+            }
+        }
+        if (!key.isEmpty() && key.size() == cache.keyNames.size()) {
+            cache.put(itemKey(key), item, cache.generation.get());
+        }
+
+        for (String hashKeyName : cache.hashKeyNames) {
+            if (item.isPresent(hashKeyName)) {
+                cache.removeQueries(hashKeyName, item.get(hashKeyName));
+            }
+        }
+    }
+
+    /**
+     * Drops the cached item with the given key, and the cached query results for every component of the key.
+     */
+    public void invalidate(String tableName, Collection<KeyAttribute> key) {
+        TableCache cache = tables.get(tableName);
+        if (cache != null) {
+            cache.generation.incrementAndGet();
+            cache.remove(itemKey(key));
+            for (KeyAttribute component : key) {
+                cache.removeQueries(component.getName(), component.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops the cached query results for the given hash key.
+     */
+    public void invalidateQueries(String tableName, String hashKeyName, Object hashKeyValue) {
+        TableCache cache = tables.get(tableName);
+        if (cache != null) {
+            cache.generation.incrementAndGet();
+            cache.removeQueries(hashKeyName, hashKeyValue);
+        }
+    }
+
+    public void invalidate(String tableName) {
+        TableCache cache = tables.get(tableName);
+        if (cache != null) {
+            cache.generation.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    public void invalidateAll() {
+        for (String tableName : tables.keySet()) {
+            invalidate(tableName);
+        }
+    }
+
+    private static Set<String> keyNames(Collection<KeyAttribute> key) {
+        Set<String> names = new HashSet<>();
+        for (KeyAttribute component : key) {
+            names.add(component.getName());
+        }
+        return names;
+    }
+
+    private static List<Object> itemKey(Collection<KeyAttribute> key) {
+        Map<String, Object> components = new TreeMap<>();
+        for (KeyAttribute component : key) {
+            components.put(component.getName(), component.getValue());
+        }
+        return Arrays.asList(ITEM, components);
+    }
+
+    private static List<Object> queryKey(String indexName, QuerySpec spec) {
+        if (spec.getHashKey() == null || spec.isConsistentRead() || spec.getExclusiveStartKey() != null ||
+                (spec.getQueryFilters() != null && !spec.getQueryFilters().isEmpty())) {
+            return null;
+        }
+
+        List<Object> rangeKeyCondition = spec.getRangeKeyCondition() == null ? null : Arrays.asList(
+                spec.getRangeKeyCondition().getAttrName(),
+                spec.getRangeKeyCondition().getKeyCondition(),
+                Arrays.asList(spec.getRangeKeyCondition().getValues()));
+
+        return Arrays.asList(QUERY, spec.getHashKey().getName(), spec.getHashKey().getValue(), indexName,
+                rangeKeyCondition, spec.getKeyConditionExpression(), spec.getFilterExpression(),
+                spec.getProjectionExpression(), spec.getAttributesToGet(), spec.getNameMap(), spec.getValueMap(),
+                spec.isScanIndexForward(), spec.getMaxResultSize(), spec.getSelect());
+    }
+
+    private static class TableCache {
+        private final long timeToLive;
+        private final Set<String> keyNames = ConcurrentHashMap.newKeySet();
+        private final Set<String> hashKeyNames = ConcurrentHashMap.newKeySet();
+        private final AtomicLong generation = new AtomicLong();
+        private final LinkedHashMap<List<Object>, Entry> entries;
+        // The keys of the cached query results for each hash key, so that a write doesn't scan every entry
+        private final Map<List<Object>, Set<List<Object>>> queriesByHashKey = new HashMap<>();
+
+        private TableCache(long timeToLive, int maximumEntries) {
+            this.timeToLive = timeToLive;
+            this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                    if (size() > maximumEntries) {
+                        unindexQuery(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private static List<Object> hashKey(List<Object> queryKey) {
+            return Arrays.asList(queryKey.get(1), queryKey.get(2));
+        }
+
+        private void indexQuery(List<Object> key) {
+            if (key.get(0) == QUERY) {
+                queriesByHashKey.computeIfAbsent(hashKey(key), hashKey -> new HashSet<>()).add(key);
+            }
+        }
+
+        private void unindexQuery(List<Object> key) {
+            if (key.get(0) == QUERY) {
+                List<Object> hashKey = hashKey(key);
+                Set<List<Object>> queries = queriesByHashKey.get(hashKey);
+                if (queries != null && queries.remove(key) && queries.isEmpty()) {
+                    queriesByHashKey.remove(hashKey);
+                }
+            }
+        }
+
+        /**
+         * Returns a one element array holding the cached value (which may be null), or null if nothing is cached.
+         */
+        private synchronized Object[] get(List<Object> key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            if (System.currentTimeMillis() >= entry.expiryTime) {
+                remove(key);
+                return null;
+            }
+
+            return new Object[] { entry.value };
+        }
+
+        private synchronized void put(List<Object> key, Object value, long readToken) {
+            if (generation.get() == readToken) {
+                indexQuery(key);
+                entries.put(key, new Entry(value, System.currentTimeMillis() + timeToLive));
+            }
+        }
+
+        private synchronized void remove(List<Object> key) {
+            if (entries.remove(key) != null) {
+                unindexQuery(key);
+            }
+        }
+
+        private synchronized void removeQueries(String hashKeyName, Object hashKeyValue) {
+            Set<List<Object>> queries = queriesByHashKey.remove(Arrays.asList(hashKeyName, hashKeyValue));
+            if (queries != null) {
+                entries.keySet().removeAll(queries);
+            }
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            queriesByHashKey.clear();
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expiryTime;
+
+        private Entry(Object value, long expiryTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
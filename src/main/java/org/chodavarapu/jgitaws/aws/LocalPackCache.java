@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Caches whole S3 objects (pack, index and bitmap files) in a directory on local disk. The total size of the cached
+ * files is bounded, with the least recently used files being deleted first. The state of the cache is rebuilt from
+ * the directory contents (using file modification times as the access order) when it is created, so that a node that
+ * is restarted comes back with its cache intact.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class LocalPackCache {
+    private static final Logger logger = LoggerFactory.getLogger(LocalPackCache.class);
+    private static final String ENCODING = "UTF-8";
+    private static final String TEMPORARY_FILE_PREFIX = "~";
+
+    private final Path directory;
+    private final long maximumSize;
+    private final LinkedHashMap<String, Long> entries;
+    private final Set<String> loading;
+    private long currentSize;
+
+    public LocalPackCache(Path directory, long maximumSize) throws IOException {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new HashSet<>();
+        this.currentSize = 0;
+
+        Files.createDirectories(directory);
+        rebuild();
+    }
+
+    private static String fileName(String objectName) {
+        try {
+            return URLEncoder.encode(objectName, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String objectName(String fileName) {
+        try {
+            return URLDecoder.decode(fileName, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void rebuild() throws IOException {
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> contents = Files.newDirectoryStream(directory)) {
+            for (Path path : contents) {
+                if (path.getFileName().toString().startsWith(TEMPORARY_FILE_PREFIX)) {
+                    Files.deleteIfExists(path);
+                } else if (Files.isRegularFile(path)) {
+                    files.add(path.toFile());
+                }
+            }
+        }
+
+        files.sort(Comparator.comparingLong(File::lastModified));
+
+        synchronized (entries) {
+            for (File file : files) {
+                entries.put(objectName(file.getName()), file.length());
+                currentSize += file.length();
+            }
+            evict();
+        }
+
+        logger.debug("Found {} cached files ({} bytes) in local pack cache {}", files.size(), currentSize, directory);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (currentSize > maximumSize && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            currentSize -= entry.getValue();
+            eldest.remove();
+
+            try {
+                Files.deleteIfExists(directory.resolve(fileName(entry.getKey())));
+            } catch (IOException e) {
+                logger.debug("Unable to delete evicted file {} from local pack cache", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Opens a cached file, or returns null if the file isn't cached. The file is opened here rather than handed out
+     * as a path because eviction may delete it at any time; a file that was evicted before it could be opened is
+     * treated as not cached. The opener should leave the file readable after deletion (a mapped or open file is).
+     */
+    public <T> T open(String objectName, FileOpener<T> opener) {
+        synchronized (entries) {
+            if (entries.get(objectName) == null) {
+                return null;
+            }
+        }
+
+        Path file = directory.resolve(fileName(objectName));
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return opener.open(file);
+        } catch (NoSuchFileException e) {
+            logger.debug("File {} was evicted from local pack cache before it could be opened", objectName);
+            synchronized (entries) {
+                Long size = entries.remove(objectName);
+                if (size != null) {
+                    currentSize -= size;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            logger.debug("Unable to open file {} from local pack cache", objectName, e);
+            remove(objectName);
+            return null;
+        }
+    }
+
+    public void load(String objectName, long size, Callable<InputStream> source) throws IOException {
+        if (size > maximumSize) {
+            return;
+        }
+
+        synchronized (entries) {
+            if (entries.containsKey(objectName) || !loading.add(objectName)) {
+                return;
+            }
+        }
+
+        Path temporaryFile = null;
+        try {
+            temporaryFile = Files.createTempFile(directory, TEMPORARY_FILE_PREFIX, null);
+            try (InputStream inputStream = source.call()) {
+                Files.copy(inputStream, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            long length = Files.size(temporaryFile);
+            Files.move(temporaryFile, directory.resolve(fileName(objectName)),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporaryFile = null;
+
+            synchronized (entries) {
+                entries.put(objectName, length);
+                currentSize += length;
+                evict();
+            }
+
+            logger.debug("Stored {} ({} bytes) in local pack cache", objectName, length);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            if (temporaryFile != null) {
+                Files.deleteIfExists(temporaryFile);
+            }
+
+            synchronized (entries) {
+                loading.remove(objectName);
+            }
+        }
+    }
+
+    public void remove(String objectName) {
+        synchronized (entries) {
+            Long size = entries.remove(objectName);
+            if (size != null) {
+                currentSize -= size;
+            }
+        }
+
+        try {
+            Files.deleteIfExists(directory.resolve(fileName(objectName)));
+        } catch (IOException e) {
+            logger.debug("Unable to delete file {} from local pack cache", objectName, e);
+        }
+    }
+
+    public long getCurrentSize() {
+        synchronized (entries) {
+            return currentSize;
+        }
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public interface FileOpener<T> {
+        T open(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.aws;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of blocks read from S3 objects, shared by every channel opened through the same
+ * {@link org.chodavarapu.jgitaws.JGitAwsConfiguration}. Blocks are keyed by the bucket, the name of the object and the
+ * (block aligned) offset of the block within the object, and are evicted in least recently used order once the total
+ * size of all cached blocks exceeds the configured maximum size. Concurrent loads of the same block are coalesced so
+ * that only one request is made to S3 and every waiting reader receives its result.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class S3BlockCache {
+    private final long maximumSize;
+    private final LinkedHashMap<BlockKey, Block> blocks;
+    private final ConcurrentHashMap<BlockKey, CompletableFuture<Block>> loadsInProgress;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong coalescedLoadCount = new AtomicLong();
+    private long currentSize;
+
+    public S3BlockCache(long maximumSize) {
+        this.maximumSize = maximumSize;
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+        this.loadsInProgress = new ConcurrentHashMap<>();
+        this.currentSize = 0;
+    }
+
+    public Block get(String bucketName, String objectName, long offset) {
+        Block block;
+        synchronized (blocks) {
+            block = blocks.get(new BlockKey(bucketName, objectName, offset));
+        }
+
+        if (block == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+
+        return block;
+    }
+
+    public boolean contains(String bucketName, String objectName, long offset) {
+        synchronized (blocks) {
+            return blocks.containsKey(new BlockKey(bucketName, objectName, offset));
+        }
+    }
+
+    public Block getOrLoad(String bucketName, String objectName, long offset, Callable<Block> loader)
+            throws IOException {
+        Block block = get(bucketName, objectName, offset);
+        if (block != null) {
+            return block;
+        }
+
+        BlockKey key = new BlockKey(bucketName, objectName, offset);
+        CompletableFuture<Block> load = new CompletableFuture<>();
+        CompletableFuture<Block> loadInProgress = loadsInProgress.putIfAbsent(key, load);
+        if (loadInProgress != null) {
+            coalescedLoadCount.incrementAndGet();
+            return await(loadInProgress);
+        }
+
+        try {
+            synchronized (blocks) {
+                block = blocks.get(key);
+            }
+
+            if (block == null) {
+                block = loader.call();
+                if (block != null) {
+                    put(bucketName, objectName, offset, block);
+                }
+            }
+
+            load.complete(block);
+            return block;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw new IOException(e);
+        } finally {
+            loadsInProgress.remove(key, load);
+        }
+    }
+
+    private static Block await(CompletableFuture<Block> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    public void put(String bucketName, String objectName, long offset, Block block) {
+        if (block.size() > maximumSize) {
+            return;
+        }
+
+        synchronized (blocks) {
+            Block previous = blocks.put(new BlockKey(bucketName, objectName, offset), block);
+            if (previous != null) {
+                currentSize -= previous.size();
+            }
+            currentSize += block.size();
+
+            Iterator<Map.Entry<BlockKey, Block>> eldest = blocks.entrySet().iterator();
+            while (currentSize > maximumSize && eldest.hasNext()) {
+                currentSize -= eldest.next().getValue().size();
+                eldest.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public long getCurrentSize() {
+        synchronized (blocks) {
+            return currentSize;
+        }
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getCoalescedLoadCount() {
+        return coalescedLoadCount.get();
+    }
+
+    public static class Block {
+        private final byte[] data;
+        private final long objectSize;
+
+        public Block(byte[] data, long objectSize) {
+            this.data = data;
+            this.objectSize = objectSize;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public long getObjectSize() {
+            return objectSize;
+        }
+
+        public int size() {
+            return data.length;
+        }
+    }
+
+    private static class BlockKey {
+        private final String bucketName;
+        private final String objectName;
+        private final long offset;
+
+        public BlockKey(String bucketName, String objectName, long offset) {
+            this.bucketName = bucketName;
+            this.objectName = objectName;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BlockKey)) return false;
+
+            BlockKey other = (BlockKey) o;
+            return offset == other.offset &&
+                    objectName.equals(other.objectName) &&
+                    bucketName.equals(other.bucketName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = bucketName.hashCode();
+            result = 31 * result + objectName.hashCode();
+            result = 31 * result + (int) (offset ^ (offset >>> 32));
+            return result;
+        }
+    }
+}
@@ -64,7 +64,7 @@ public class AmazonRepository extends DfsRepository {
     private final JGitAwsConfiguration configuration;
     private final StoredConfig storedConfig;
     private final DfsObjDatabase objectDatabase;
-    private final DfsRefDatabase refDatabase;
+    private final DynamoRefDatabase refDatabase;
 
     private AmazonRepository(Builder builder) {
         super(builder);
@@ -95,6 +95,12 @@ public class AmazonRepository extends DfsRepository {
         return true;
     }
 
+    @Override
+    public void scanForRepoChanges() throws IOException {
+        super.scanForRepoChanges();
+        refDatabase.forgetLoadedRefs();
+    }
+
     @Override
     public StoredConfig getConfig() {
         return storedConfig;
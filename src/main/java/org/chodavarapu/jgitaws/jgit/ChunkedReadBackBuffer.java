@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the contents of a file being written so that it can be read back by JGit and streamed to S3 at the same time.
+ * Data is kept in fixed size chunks of pooled direct buffers; once the amount of data written passes the spill
+ * threshold the remainder is written to a temporary file instead. There is a single writer, positional reads of data
+ * held in memory do not need any locking.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class ChunkedReadBackBuffer {
+    private static final long MAXIMUM_POOLED_BYTES = 64 * 1024 * 1024;
+    private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> pools = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private final int chunkSize;
+    private final long spillOffset;
+    private final Object spillLock = new Object();
+    private final Object dataAvailable = new Object();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private volatile ByteBuffer[] chunks;
+    private volatile long length;
+    private volatile boolean finished;
+
+    private ByteBuffer current;
+    private int chunkCount;
+    private FileChannel spillFile;
+    private long spilledLength;
+
+    public ChunkedReadBackBuffer(int chunkSize, long spillThreshold) {
+        this.chunkSize = chunkSize;
+        this.spillOffset = (spillThreshold + chunkSize - 1) / chunkSize * chunkSize;
+        this.chunks = new ByteBuffer[16];
+        this.length = 0;
+        this.finished = false;
+        this.chunkCount = 0;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ConcurrentLinkedQueue<ByteBuffer> pool = pools.get(size);
+        ByteBuffer buffer = pool == null ? null : pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        pooledBytes.addAndGet(-size);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void recycle(ByteBuffer buffer) {
+        if (pooledBytes.addAndGet(buffer.capacity()) > MAXIMUM_POOLED_BYTES) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+
+        pools.computeIfAbsent(buffer.capacity(), size -> new ConcurrentLinkedQueue<>()).add(buffer);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+
+            int n = Math.min(len, current.remaining());
+            if (length >= spillOffset) {
+                synchronized (spillLock) {
+                    current.put(buf, off, n);
+                    length += n;
+                }
+            } else {
+                current.put(buf, off, n);
+                length += n;
+            }
+
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void nextChunk() throws IOException {
+        if (current != null) {
+            signalDataAvailable();
+        }
+
+        if (length >= spillOffset) {
+            synchronized (spillLock) {
+                if (spillFile == null) {
+                    spillFile = FileChannel.open(Files.createTempFile("jga-", ".spill"),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                    current = allocate(chunkSize);
+                } else {
+                    flushSpilledChunk();
+                }
+            }
+            return;
+        }
+
+        current = allocate(chunkSize);
+
+        ByteBuffer[] chunks = this.chunks;
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        chunks[chunkCount++] = current;
+        this.chunks = chunks;
+    }
+
+    private void flushSpilledChunk() throws IOException {
+        ByteBuffer data = current.duplicate();
+        data.flip();
+
+        long offset = spilledLength;
+        while (data.hasRemaining()) {
+            offset += spillFile.write(data, offset);
+        }
+
+        spilledLength = offset;
+        current.clear();
+    }
+
+    public void finish() throws IOException {
+        if (spillFile != null) {
+            synchronized (spillLock) {
+                flushSpilledChunk();
+            }
+        }
+
+        finished = true;
+        signalDataAvailable();
+    }
+
+    private void signalDataAvailable() {
+        synchronized (dataAvailable) {
+            dataAvailable.notifyAll();
+        }
+    }
+
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long length = this.length;
+        if (position >= length) {
+            return -1;
+        }
+
+        if (position < spillOffset) {
+            ByteBuffer chunk = chunks[(int) (position / chunkSize)].duplicate();
+            int offsetInChunk = (int) (position % chunkSize);
+            int readLength = (int) Math.min(Math.min(chunkSize - offsetInChunk, length - position), dst.remaining());
+
+            chunk.limit(offsetInChunk + readLength);
+            chunk.position(offsetInChunk);
+            dst.put(chunk);
+
+            return readLength;
+        }
+
+        synchronized (spillLock) {
+            long spilledPosition = position - spillOffset;
+            if (spilledPosition < spilledLength) {
+                ByteBuffer window = dst.duplicate();
+                window.limit(window.position() + (int) Math.min(dst.remaining(), spilledLength - spilledPosition));
+
+                int readLength = spillFile.read(window, spilledPosition);
+                dst.position(dst.position() + readLength);
+                return readLength;
+            }
+
+            ByteBuffer chunk = current.duplicate();
+            int offsetInChunk = (int) (spilledPosition - spilledLength);
+            int readLength = Math.min(chunk.position() - offsetInChunk, dst.remaining());
+
+            chunk.limit(offsetInChunk + readLength);
+            chunk.position(offsetInChunk);
+            dst.put(chunk);
+
+            return readLength;
+        }
+    }
+
+    public InputStream newInputStream() {
+        return newInputStream(0, -1);
+    }
+
+    public InputStream newInputStream(long start, long count) {
+        return new InputStream() {
+            private long position = start;
+            private final long end = count < 0 ? -1 : start + count;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (end >= 0) {
+                    if (position >= end) {
+                        return -1;
+                    }
+                    len = (int) Math.min(len, end - position);
+                }
+
+                if (len == 0) {
+                    return 0;
+                }
+
+                awaitData(position);
+
+                int n = ChunkedReadBackBuffer.this.read(position, ByteBuffer.wrap(b, off, len));
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    private void awaitData(long position) throws IOException {
+        synchronized (dataAvailable) {
+            while (position >= length && !finished) {
+                try {
+                    dataAvailable.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    public void release() throws IOException {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+
+        ByteBuffer[] chunks = this.chunks;
+        for (int i = 0; i < chunkCount; i++) {
+            recycle(chunks[i]);
+        }
+
+        synchronized (spillLock) {
+            if (spillFile != null) {
+                recycle(current);
+                spillFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Writes a file through another stream and keeps a copy of what was written, which is handed to a consumer once the
+ * file has been closed successfully. Files larger than the maximum copy size aren't copied, and the consumer isn't
+ * called for them.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class CopyingDfsOutputStream extends DfsOutputStream {
+    private final DfsOutputStream out;
+    private final int maximumCopySize;
+    private final Consumer<byte[]> copyConsumer;
+    private ByteArrayOutputStream copy;
+
+    public CopyingDfsOutputStream(DfsOutputStream out, int maximumCopySize, Consumer<byte[]> copyConsumer) {
+        this.out = out;
+        this.maximumCopySize = maximumCopySize;
+        this.copyConsumer = copyConsumer;
+        this.copy = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public int blockSize() {
+        return out.blockSize();
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+
+        if (copy != null) {
+            if (copy.size() + len > maximumCopySize) {
+                copy = null;
+            } else {
+                copy.write(buf, off, len);
+            }
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buf) throws IOException {
+        return out.read(position, buf);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+
+        if (copy != null) {
+            byte[] copied = copy.toByteArray();
+            copy = null;
+            copyConsumer.accept(copied);
+        }
+    }
+}
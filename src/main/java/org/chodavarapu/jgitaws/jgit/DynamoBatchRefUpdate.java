@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.util.async.Async;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies the commands of a batch concurrently instead of one after the other. As in {@link BatchRefUpdate}, the type
+ * of every command (and so whether an update is a fast-forward) is first worked out on the caller's {@link RevWalk}.
+ * The commands are then split into groups that run concurrently on the blocking pool of the
+ * {@link org.chodavarapu.jgitaws.aws.ExecutionModel}. A {@link RevWalk} can't be shared between threads, so each
+ * group checks its updates against its own walk. The version of the refs of the repository is bumped once for the
+ * whole batch rather than once per ref.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class DynamoBatchRefUpdate extends BatchRefUpdate {
+    private static final Logger logger = LoggerFactory.getLogger(DynamoBatchRefUpdate.class);
+
+    private final DynamoRefDatabase refDatabase;
+    private final JGitAwsConfiguration configuration;
+
+    public DynamoBatchRefUpdate(DynamoRefDatabase refDatabase, JGitAwsConfiguration configuration) {
+        super(refDatabase);
+
+        this.refDatabase = refDatabase;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void execute(RevWalk walk, ProgressMonitor monitor) throws IOException {
+        List<ReceiveCommand> pending = ReceiveCommand.filter(getCommands(), ReceiveCommand.Result.NOT_ATTEMPTED);
+        monitor.beginTask(JGitText.get().updatingReferences, pending.size());
+
+        Throwable failure = null;
+        try {
+            List<ReceiveCommand> deletes = new ArrayList<>();
+            List<ReceiveCommand> updates = new ArrayList<>();
+            for (ReceiveCommand command : pending) {
+                try {
+                    command.updateType(walk);
+                } catch (IOException e) {
+                    command.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                            MessageFormat.format(JGitText.get().lockError, e.getMessage()));
+                    continue;
+                }
+
+                if (command.getType() == ReceiveCommand.Type.DELETE) {
+                    deletes.add(command);
+                } else {
+                    updates.add(command);
+                }
+            }
+
+            // Deletes go first, as they may free up names that creates in the same batch need
+            executeConcurrently(deletes, walk, monitor);
+
+            if (!updates.isEmpty()) {
+                reserveNames(updates);
+                executeConcurrently(updates, walk, monitor);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            try {
+                if (!ReceiveCommand.filter(pending, ReceiveCommand.Result.OK).isEmpty()) {
+                    bumpRefsVersion(failure);
+                }
+            } finally {
+                monitor.endTask();
+            }
+        }
+    }
+
+    private void bumpRefsVersion(Throwable failure) throws IOException {
+        try {
+            configuration.getRefRepository().bumpRefsVersion(refDatabase.getRepository().getRepositoryName())
+                    .toBlocking()
+                    .lastOrDefault(false);
+        } catch (RuntimeException e) {
+            if (failure != null) {
+                failure.addSuppressed(e);
+            } else {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private void reserveNames(List<ReceiveCommand> updates) throws IOException {
+        Set<String> takenNames = new HashSet<>(refDatabase.getRefs(RefDatabase.ALL).keySet());
+        Set<String> takenPrefixes = new HashSet<>();
+        for (String name : takenNames) {
+            takenPrefixes.addAll(getPrefixes(name));
+        }
+
+        for (ReceiveCommand command : updates) {
+            if (command.getType() != ReceiveCommand.Type.CREATE) {
+                continue;
+            }
+
+            boolean conflicting = takenPrefixes.contains(command.getRefName());
+            for (String prefix : getPrefixes(command.getRefName())) {
+                conflicting |= takenNames.contains(prefix);
+            }
+
+            if (conflicting) {
+                command.setResult(RefUpdate.Result.LOCK_FAILURE);
+            } else {
+                takenNames.add(command.getRefName());
+                takenPrefixes.addAll(getPrefixes(command.getRefName()));
+            }
+        }
+    }
+
+    private static Collection<String> getPrefixes(String name) {
+        Collection<String> prefixes = new ArrayList<>();
+        int slash = name.indexOf('/');
+        while (slash > 0) {
+            prefixes.add(name.substring(0, slash));
+            slash = name.indexOf('/', slash + 1);
+        }
+        return prefixes;
+    }
+
+    private void executeConcurrently(List<ReceiveCommand> commands, RevWalk walk, ProgressMonitor monitor)
+            throws IOException {
+        int groupCount = Math.min(commands.size(), configuration.getMaximumConcurrentRefUpdates());
+        if (groupCount <= 1) {
+            execute(commands, walk, monitor);
+            return;
+        }
+
+        List<List<ReceiveCommand>> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            groups.get(i % groupCount).add(commands.get(i));
+        }
+
+        logger.debug("Updating {} refs of repository {} in {} concurrent groups",
+                commands.size(), refDatabase.getRepository().getRepositoryName(), groupCount);
+
+        try {
+            Observable.from(groups)
+                    .flatMap(group -> Async.fromCallable(() -> {
+                        try (RevWalk groupWalk = new RevWalk(refDatabase.getRepository())) {
+                            execute(group, groupWalk, monitor);
+                        }
+                        return null;
+                    }, configuration.getExecutionModel().getBlockingPool().getScheduler()))
+                    .toBlocking()
+                    .lastOrDefault(null);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e);
+        }
+    }
+
+    private void execute(List<ReceiveCommand> commands, RevWalk walk, ProgressMonitor monitor) throws IOException {
+        refDatabase.deferVersionBumps(true);
+        try {
+            for (ReceiveCommand command : commands) {
+                if (command.getResult() != ReceiveCommand.Result.NOT_ATTEMPTED) {
+                    continue;
+                }
+
+                try {
+                    RefUpdate update = newUpdate(command);
+                    if (command.getType() == ReceiveCommand.Type.DELETE) {
+                        command.setResult(update.delete(walk));
+                    } else {
+                        update.setCheckConflicting(false);
+                        command.setResult(update.update(walk));
+                    }
+                } catch (IOException e) {
+                    command.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                            MessageFormat.format(JGitText.get().lockError, e.getMessage()));
+                } finally {
+                    synchronized (monitor) {
+                        monitor.update(1);
+                    }
+                }
+            }
+        } finally {
+            refDatabase.deferVersionBumps(false);
+        }
+    }
+}
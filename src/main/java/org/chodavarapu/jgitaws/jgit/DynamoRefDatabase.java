@@ -48,12 +48,21 @@ package org.chodavarapu.jgitaws.jgit;
 
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
 import org.eclipse.jgit.internal.storage.dfs.DfsRefDatabase;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
 import org.eclipse.jgit.util.RefList;
+import org.eclipse.jgit.util.RefMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observable;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
@@ -61,6 +70,8 @@ import java.io.IOException;
 public class DynamoRefDatabase extends DfsRefDatabase {
     private static final Logger logger = LoggerFactory.getLogger(DynamoRefDatabase.class);
     private final JGitAwsConfiguration configuration;
+    private final ThreadLocal<Boolean> versionBumpsDeferred = ThreadLocal.withInitial(() -> false);
+    private final AtomicReference<RefList<Ref>> loadedRefs = new AtomicReference<>();
 
     public DynamoRefDatabase(AmazonRepository repository, JGitAwsConfiguration configuration) {
         super(repository);
@@ -70,16 +81,231 @@ public class DynamoRefDatabase extends DfsRefDatabase {
 
     @Override
     protected boolean compareAndPut(Ref oldRef, Ref newRef) throws IOException {
-        return configuration.getRefRepository().compareAndPut(getRepository().getRepositoryName(), oldRef, newRef)
-                .toBlocking()
-                .lastOrDefault(false);
+        boolean stored = awaitRefChange(configuration.getRefRepository()
+                .compareAndPut(getRepository().getRepositoryName(), oldRef, newRef, !versionBumpsDeferred.get()));
+        if (stored) {
+            loadedRefs.updateAndGet(refs -> refs == null ? null : refs.put(newRef));
+        }
+        return stored;
     }
 
     @Override
     protected boolean compareAndRemove(Ref oldRef) throws IOException {
-        return configuration.getRefRepository().compareAndRemove(getRepository().getRepositoryName(), oldRef)
+        boolean removed = awaitRefChange(configuration.getRefRepository()
+                .compareAndRemove(getRepository().getRepositoryName(), oldRef, !versionBumpsDeferred.get()));
+        if (removed) {
+            loadedRefs.updateAndGet(refs -> {
+                if (refs == null) {
+                    return null;
+                }
+                int index = refs.find(oldRef.getName());
+                return index < 0 ? refs : refs.remove(index);
+            });
+        }
+        return removed;
+    }
+
+    /**
+     * Waits for a ref to be changed. A change fails (rather than returning false) when the ref was changed but the
+     * refs version couldn't be bumped.
+     */
+    private boolean awaitRefChange(Observable<Boolean> change) throws IOException {
+        try {
+            return change.toBlocking().lastOrDefault(false);
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Drops the refs loaded by this database, along with the cache of the superclass that they mirror.
+     */
+    void forgetLoadedRefs() {
+        loadedRefs.set(null);
+    }
+
+    /**
+     * Reads a single ref (following symbolic refs) from the refs this database has loaded, or straight from DynamoDB
+     * instead of loading every ref of the repository when none have been loaded yet.
+     */
+    @Override
+    public Ref exactRef(String name) throws IOException {
+        RefList<Ref> refs = loadedRefs.get();
+        if (refs != null) {
+            Ref ref = refs.get(name);
+            return ref == null ? null : resolve(ref, 0, refs);
+        }
+
+        Ref ref = configuration.getRefRepository().getRef(getRepository().getRepositoryName(), name)
+                .toBlocking()
+                .lastOrDefault(null);
+
+        return ref == null ? null : resolve(ref, 0);
+    }
+
+    private Ref resolve(Ref ref, int depth) throws IOException {
+        if (!ref.isSymbolic()) {
+            return ref;
+        }
+
+        if (depth >= MAX_SYMBOLIC_REF_DEPTH) {
+            return null;
+        }
+
+        String targetName = ref.getTarget().getName();
+        Ref target = configuration.getRefRepository().getRef(getRepository().getRepositoryName(), targetName)
+                .toBlocking()
+                .lastOrDefault(null);
+
+        if (target == null) {
+            return new SymbolicRef(ref.getName(), new ObjectIdRef.Unpeeled(Ref.Storage.NEW, targetName, null));
+        }
+
+        target = resolve(target, depth + 1);
+        return target == null ? null : new SymbolicRef(ref.getName(), target);
+    }
+
+    /**
+     * Looks up a short ref name in the refs this database has loaded, or reads every name on the search path from
+     * DynamoDB in parallel when none have been loaded yet.
+     */
+    @Override
+    public Ref getRef(String needle) throws IOException {
+        RefList<Ref> refs = loadedRefs.get();
+        if (refs != null) {
+            for (String prefix : SEARCH_PATH) {
+                Ref ref = refs.get(prefix + needle);
+                if (ref != null) {
+                    return resolve(ref, 0, refs);
+                }
+            }
+            return null;
+        }
+
+        Map<String, Ref> found = Observable.from(SEARCH_PATH)
+                .flatMap(prefix -> configuration.getRefRepository()
+                        .getRef(getRepository().getRepositoryName(), prefix + needle))
+                .toMap(Ref::getName)
+                .toBlocking()
+                .single();
+
+        for (String prefix : SEARCH_PATH) {
+            Ref ref = found.get(prefix + needle);
+            if (ref != null) {
+                return resolve(ref, 0);
+            }
+        }
+
+        return null;
+    }
+
+    private Ref resolve(Ref ref, int depth, RefList<Ref> refs) {
+        if (!ref.isSymbolic()) {
+            return ref;
+        }
+
+        if (depth >= MAX_SYMBOLIC_REF_DEPTH) {
+            return null;
+        }
+
+        String targetName = ref.getTarget().getName();
+        Ref target = refs.get(targetName);
+        if (target == null) {
+            return new SymbolicRef(ref.getName(), new ObjectIdRef.Unpeeled(Ref.Storage.NEW, targetName, null));
+        }
+
+        target = resolve(target, depth + 1, refs);
+        return target == null ? null : new SymbolicRef(ref.getName(), target);
+    }
+
+    /**
+     * Reads only the refs under the prefix with a key condition on the ref name; listing all refs still goes through
+     * the (cached) full scan.
+     */
+    @Override
+    public Map<String, Ref> getRefs(String prefix) throws IOException {
+        if (prefix.equals(ALL)) {
+            return super.getRefs(prefix);
+        }
+
+        List<Ref> refs = configuration.getRefRepository()
+                .getRefsWithPrefixSorted(getRepository().getRepositoryName(), prefix)
+                .toList()
                 .toBlocking()
-                .lastOrDefault(false);
+                .single();
+
+        RefList.Builder<Ref> loose = new RefList.Builder<>(refs.size());
+        RefList.Builder<Ref> resolved = new RefList.Builder<>();
+        for (Ref ref : refs) {
+            if (ref.isSymbolic()) {
+                Ref resolvedRef = resolve(ref, 0);
+                if (resolvedRef == null || resolvedRef.getObjectId() == null) {
+                    continue;
+                }
+                resolved.add(resolvedRef);
+            }
+            loose.add(ref);
+        }
+
+        return new RefMap(prefix, RefList.emptyList(), loose.toRefList(), resolved.toRefList());
+    }
+
+    /**
+     * Checks for conflicting names in the refs this database has loaded, or reads the parent names and the refs under
+     * the name from DynamoDB when none have been loaded yet.
+     */
+    @Override
+    public boolean isNameConflicting(String name) throws IOException {
+        RefList<Ref> refs = loadedRefs.get();
+        if (refs != null) {
+            return isNameConflicting(name, refs);
+        }
+
+        String repositoryName = getRepository().getRepositoryName();
+        List<Observable<Boolean>> conflicts = new ArrayList<>();
+
+        int lastSlash = name.lastIndexOf('/');
+        while (0 < lastSlash) {
+            conflicts.add(configuration.getRefRepository().getRef(repositoryName, name.substring(0, lastSlash))
+                    .map(ref -> true));
+            lastSlash = name.lastIndexOf('/', lastSlash - 1);
+        }
+
+        conflicts.add(configuration.getRefRepository().getRefsWithPrefixSorted(repositoryName, name + '/')
+                .take(1)
+                .map(ref -> true));
+
+        return Observable.merge(conflicts).toBlocking().firstOrDefault(false);
+    }
+
+    private static boolean isNameConflicting(String name, RefList<Ref> refs) {
+        int lastSlash = name.lastIndexOf('/');
+        while (0 < lastSlash) {
+            if (refs.get(name.substring(0, lastSlash)) != null) {
+                return true;
+            }
+            lastSlash = name.lastIndexOf('/', lastSlash - 1);
+        }
+
+        String prefix = name + '/';
+        int index = refs.find(prefix);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        return index < refs.size() && refs.get(index).getName().startsWith(prefix);
+    }
+
+    /**
+     * Lets a batch update skip bumping the refs version for each ref it updates on the current thread; the batch
+     * bumps it once after all its updates are done.
+     */
+    void deferVersionBumps(boolean deferred) {
+        versionBumpsDeferred.set(deferred);
+    }
+
+    @Override
+    public BatchRefUpdate newBatchUpdate() {
+        return new DynamoBatchRefUpdate(this, configuration);
     }
 
     @Override
@@ -91,24 +317,25 @@ public class DynamoRefDatabase extends DfsRefDatabase {
     protected RefCache scanAllRefs() throws IOException {
         logger.debug("Retrieving refs for repository {}", getRepository().getRepositoryName());
 
-        RefCache cache = configuration.getRefRepository().getAllRefsSorted(getRepository().getRepositoryName())
+        List<Ref> refs = configuration.getRefRepository().getAllRefsSorted(getRepository().getRepositoryName())
                 .toList()
-                .map(refs -> {
-                    RefList.Builder<Ref> allRefs = new RefList.Builder<>();
-                    RefList.Builder<Ref> onlySymbolicRefs = new RefList.Builder<>();
+                .toBlocking()
+                .lastOrDefault(new ArrayList<>());
 
-                    for (Ref ref : refs) {
-                        allRefs.add(ref);
+        RefList.Builder<Ref> allRefs = new RefList.Builder<>(refs.size());
+        RefList.Builder<Ref> onlySymbolicRefs = new RefList.Builder<>();
+        for (Ref ref : refs) {
+            allRefs.add(ref);
 
-                        if (ref.isSymbolic())
-                            onlySymbolicRefs.add(ref);
-                    }
+            if (ref.isSymbolic())
+                onlySymbolicRefs.add(ref);
+        }
 
-                    return new RefCache(allRefs.toRefList(), onlySymbolicRefs.toRefList());
-                })
-                .toBlocking()
-                .lastOrDefault(new RefCache(RefList.emptyList(), RefList.emptyList()));
+        // Kept so that single refs can be served from the refs the superclass caches, which it doesn't expose
+        RefList<Ref> loaded = allRefs.toRefList();
+        loadedRefs.set(loaded);
 
+        RefCache cache = new RefCache(loaded, onlySymbolicRefs.toRefList());
         logger.debug("Retrieved {} refs for repository {}", cache.size(), getRepository().getRepositoryName());
         return cache;
     }
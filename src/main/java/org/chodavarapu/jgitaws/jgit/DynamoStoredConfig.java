@@ -47,6 +47,7 @@
 package org.chodavarapu.jgitaws.jgit;
 
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.repositories.ConfigurationRepository;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.StoredConfig;
 
@@ -56,8 +57,6 @@ import java.io.IOException;
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class DynamoStoredConfig extends StoredConfig {
-    private static final int MAX_ITEM_SIZE = 399 * 1024;
-
     private final AmazonRepository repository;
     private final JGitAwsConfiguration configuration;
 
@@ -76,7 +75,7 @@ public class DynamoStoredConfig extends StoredConfig {
     @Override
     public void save() throws IOException {
         String text = toText();
-        if (text.length() > MAX_ITEM_SIZE) {
+        if (text.length() > ConfigurationRepository.MAXIMUM_CONFIGURATION_SIZE) {
             throw new IOException(new IllegalArgumentException("Configuration is too large!"));
         }
 
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.NB;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bloom filter of the objects in a pack, stored next to the pack with the {@link #EXTENSION} file extension. It lets
+ * a lookup of an object through the object database (but not through an object reader, see
+ * {@link S3WithDynamoMetaDataObjDatabase#has}) skip the index of every pack that definitely doesn't have the object.
+ * Object ids are already uniformly distributed, so the bit positions are derived directly from the id by double
+ * hashing. The file format is:
+ * <pre>
+ * "JGAB" version:int hashCount:int wordCount:int ( word:long )*
+ * </pre>
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackBloomFilter {
+    public static final PackExt EXTENSION = PackExt.newPackExt("bloom");
+
+    private static final int MAGIC = 0x4a474142;
+    private static final int VERSION = 1;
+
+    private final int hashCount;
+    private final long[] words;
+
+    private PackBloomFilter(int hashCount, long[] words) {
+        this.hashCount = hashCount;
+        this.words = words;
+    }
+
+    public static PackBloomFilter create(PackIndex index, int bitsPerObject) {
+        long bitCount = Math.max(64, index.getObjectCount() * bitsPerObject);
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64);
+        int hashCount = Math.max(1, (int) Math.round(bitsPerObject * Math.log(2)));
+
+        PackBloomFilter filter = new PackBloomFilter(hashCount, new long[wordCount]);
+        byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        for (PackIndex.MutableEntry entry : index) {
+            entry.toObjectId().copyRawTo(id, 0);
+            filter.add(id);
+        }
+
+        return filter;
+    }
+
+    public static PackBloomFilter read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a pack bloom filter");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported pack bloom filter version " + version);
+        }
+
+        int hashCount = in.readInt();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+
+        return new PackBloomFilter(hashCount, words);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + words.length * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(hashCount);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void add(byte[] id) {
+        long bitCount = (long) words.length * 64;
+        long hash1 = NB.decodeInt64(id, 0);
+        long hash2 = NB.decodeInt64(id, 8) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the pack definitely doesn't have the object, and true if it may have it.
+     */
+    public boolean mightContain(AnyObjectId objectId) {
+        byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        objectId.copyRawTo(id, 0);
+
+        long bitCount = (long) words.length * 64;
+        long hash1 = NB.decodeInt64(id, 0);
+        long hash2 = NB.decodeInt64(id, 8) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackCompactor;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the number of packs of a repository down by compacting them in the background. Every time packs are
+ * committed the packs of the repository are checked: once the number of small packs reaches
+ * {@link JGitAwsConfiguration#getPackCompactionThreshold()} they are compacted into one with a
+ * {@link DfsPackCompactor}, and once the total number of packs reaches
+ * {@link JGitAwsConfiguration#getGarbageCollectionThreshold()} the whole repository is repacked with a
+ * {@link DfsGarbageCollector}.
+ * <p>
+ * Compactions run on the compaction pool of the {@link org.chodavarapu.jgitaws.aws.ExecutionModel}. At most
+ * {@link JGitAwsConfiguration#getMaximumConcurrentPackCompactions()} repositories are compacted at a time, and a
+ * repository that already has a compaction queued or running is not queued again. Packs that were replaced are
+ * removed from the pack list right away, but as other processes may still be reading them their files are only
+ * deleted from S3 {@link JGitAwsConfiguration#getReplacedPackDeletionDelay()} milliseconds later, and only if they
+ * are still absent from the pack list by then.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackCompactionScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(PackCompactionScheduler.class);
+
+    private static final int MAXIMUM_QUEUED_COMPACTIONS = 256;
+
+    private final JGitAwsConfiguration configuration;
+    private final Set<String> scheduledRepositories = ConcurrentHashMap.newKeySet();
+    private final Queue<AmazonRepository> queuedRepositories = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong garbageCollectionCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong replacedPackCount = new AtomicLong();
+    private final AtomicLong deletedPackCount = new AtomicLong();
+    private final AtomicLong pendingDeletionCount = new AtomicLong();
+
+    public PackCompactionScheduler(JGitAwsConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Called after packs have been committed to a repository, to queue a compaction of the repository if it has
+     * too many packs. Packs written by a compaction or garbage collection don't trigger another one.
+     */
+    public void onPacksCommitted(AmazonRepository repository, Collection<DfsPackDescription> packs) {
+        if (!configuration.isPackCompactionEnabled() || packs == null || packs.isEmpty()) {
+            return;
+        }
+
+        boolean written = false;
+        for (DfsPackDescription pack : packs) {
+            written |= pack.getPackSource() != DfsObjDatabase.PackSource.COMPACT &&
+                    pack.getPackSource() != DfsObjDatabase.PackSource.GC &&
+                    pack.getPackSource() != DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE;
+        }
+
+        if (written) {
+            schedule(repository);
+        }
+    }
+
+    public void schedule(AmazonRepository repository) {
+        String repositoryName = repository.getRepositoryName();
+        if (scheduledRepositories.size() >= MAXIMUM_QUEUED_COMPACTIONS) {
+            rejectedCount.incrementAndGet();
+            logger.debug("Too many pack compactions queued, skipping compaction of repository {}", repositoryName);
+            return;
+        }
+
+        if (!scheduledRepositories.add(repositoryName)) {
+            return;
+        }
+
+        queuedRepositories.add(repository);
+        scheduledCount.incrementAndGet();
+        startQueuedCompactions();
+    }
+
+    private void startQueuedCompactions() {
+        while (!queuedRepositories.isEmpty()) {
+            int running = runningCount.get();
+            if (running >= configuration.getMaximumConcurrentPackCompactions()) {
+                return;
+            }
+            if (!runningCount.compareAndSet(running, running + 1)) {
+                continue;
+            }
+
+            AmazonRepository repository = queuedRepositories.poll();
+            if (repository == null) {
+                runningCount.decrementAndGet();
+                continue;
+            }
+
+            try {
+                configuration.getExecutionModel().getCompactionPool().execute(() -> {
+                    try {
+                        compactIfNeeded(repository);
+                    } catch (Exception e) {
+                        failureCount.incrementAndGet();
+                        logger.warn("Unable to compact packs of repository {}", repository.getRepositoryName(), e);
+                    } finally {
+                        scheduledRepositories.remove(repository.getRepositoryName());
+                        runningCount.decrementAndGet();
+                        startQueuedCompactions();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                scheduledRepositories.remove(repository.getRepositoryName());
+                runningCount.decrementAndGet();
+                rejectedCount.incrementAndGet();
+                logger.debug("Compaction pool rejected compaction of repository {}", repository.getRepositoryName());
+                return;
+            }
+        }
+    }
+
+    private void compactIfNeeded(AmazonRepository repository) throws IOException {
+        String repositoryName = repository.getRepositoryName();
+        DfsPackFile[] packs = repository.getObjectDatabase().getPacks();
+
+        if (packs.length >= configuration.getGarbageCollectionThreshold()) {
+            logger.debug("Repository {} has {} packs, running garbage collection", repositoryName, packs.length);
+
+            DfsGarbageCollector collector = new DfsGarbageCollector(repository);
+            if (collector.pack(NullProgressMonitor.INSTANCE)) {
+                garbageCollectionCount.incrementAndGet();
+                replacedPackCount.addAndGet(collector.getSourcePacks().size());
+                logger.debug("Garbage collection replaced {} packs of repository {} with {}",
+                        collector.getSourcePacks().size(), repositoryName, collector.getNewPacks().size());
+                deleteReplacedPacks(repository, collector.getSourcePacks());
+            }
+            return;
+        }
+
+        List<DfsPackFile> smallPacks = new ArrayList<>();
+        for (DfsPackFile pack : packs) {
+            if (pack.getPackDescription().getFileSize(PackExt.PACK) < configuration.getPackCompactionSmallPackSize()) {
+                smallPacks.add(pack);
+            }
+        }
+
+        if (smallPacks.size() < configuration.getPackCompactionThreshold()) {
+            return;
+        }
+
+        logger.debug("Repository {} has {} small packs, compacting them", repositoryName, smallPacks.size());
+
+        DfsPackCompactor compactor = new DfsPackCompactor(repository);
+        for (DfsPackFile pack : packs) {
+            if (smallPacks.contains(pack)) {
+                compactor.add(pack);
+            } else {
+                compactor.exclude(pack);
+            }
+        }
+        compactor.compact(NullProgressMonitor.INSTANCE);
+
+        compactionCount.incrementAndGet();
+        replacedPackCount.addAndGet(compactor.getSourcePacks().size());
+        logger.debug("Compaction replaced {} packs of repository {} with {}",
+                compactor.getSourcePacks().size(), repositoryName, compactor.getNewPacks().size());
+        deleteReplacedPacks(repository, compactor.getSourcePacks());
+    }
+
+    /**
+     * Deletes the files of replaced packs once the deletion delay has passed. The pack list is read again first,
+     * and packs that are listed again (for instance because the commit that replaced them was undone) are kept.
+     */
+    private void deleteReplacedPacks(AmazonRepository repository, Collection<DfsPackDescription> replacedPacks) {
+        long delay = configuration.getReplacedPackDeletionDelay();
+        if (delay < 0 || replacedPacks.isEmpty()) {
+            return;
+        }
+
+        String repositoryName = repository.getRepositoryName();
+        List<DfsPackDescription> packs = new ArrayList<>(replacedPacks);
+        pendingDeletionCount.addAndGet(packs.size());
+
+        Observable.timer(delay, TimeUnit.MILLISECONDS,
+                configuration.getExecutionModel().getCompactionPool().getScheduler())
+                .flatMap(tick -> configuration.getPackDescriptionRepository().getAllPackDescriptions(repository)
+                        .map(pack -> pack.getFileName(PackExt.PACK))
+                        .toList())
+                .flatMap(listedPacks -> {
+                    Set<String> listed = new HashSet<>(listedPacks);
+                    List<DfsPackDescription> unlisted = new ArrayList<>();
+                    for (DfsPackDescription pack : packs) {
+                        if (!listed.contains(pack.getFileName(PackExt.PACK))) {
+                            unlisted.add(pack);
+                        }
+                    }
+
+                    if (unlisted.isEmpty()) {
+                        return Observable.<Integer>just(0);
+                    }
+                    return configuration.getPackRepository().deletePacks(unlisted)
+                            .lastOrDefault(null)
+                            .map(done -> unlisted.size());
+                })
+                .doOnTerminate(() -> pendingDeletionCount.addAndGet(-packs.size()))
+                .subscribe(
+                        deleted -> {
+                            deletedPackCount.addAndGet(deleted);
+                            logger.debug("Deleted {} replaced packs of repository {}", deleted, repositoryName);
+                        },
+                        e -> logger.warn("Unable to delete replaced packs of repository {}", repositoryName, e));
+    }
+
+    public int getQueueDepth() {
+        return queuedRepositories.size();
+    }
+
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    public long getGarbageCollectionCount() {
+        return garbageCollectionCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getReplacedPackCount() {
+        return replacedPackCount.get();
+    }
+
+    public long getDeletedPackCount() {
+        return deletedPackCount.get();
+    }
+
+    /**
+     * The number of replaced packs whose files are waiting for the deletion delay to pass.
+     */
+    public long getPendingDeletionCount() {
+        return pendingDeletionCount.get();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the contents of recently written pack files so that they can be read back without going to S3. JGit reopens
+ * a pack and its index right after writing them, and a fetch usually follows a push closely, so the
+ * {@link ChunkedReadBackBuffer} a file was written through is handed over here once its upload succeeds instead of
+ * being released. Files are kept until they are older than
+ * {@link JGitAwsConfiguration#getMaximumPackResidencyAge()}, or until the oldest files have to make room for newer
+ * ones to stay within {@link JGitAwsConfiguration#getPackResidencySize()} bytes.
+ * <p>
+ * Buffers are reference counted: a buffer that is evicted while a channel is still reading from it is only released
+ * once that channel is closed.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackResidency {
+    private static final Logger logger = LoggerFactory.getLogger(PackResidency.class);
+
+    private final JGitAwsConfiguration configuration;
+    private final LinkedHashMap<String, Resident> residents = new LinkedHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private long residentSize;
+
+    public PackResidency(JGitAwsConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    private static class Resident {
+        private final ChunkedReadBackBuffer buffer;
+        private final long size;
+        private final long admittedTime;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Resident(ChunkedReadBackBuffer buffer, long admittedTime) {
+            this.buffer = buffer;
+            this.size = buffer.length();
+            this.admittedTime = admittedTime;
+        }
+
+        private boolean acquire() {
+            for (;;) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    buffer.release();
+                } catch (IOException e) {
+                    logger.debug("Unable to release buffer of resident pack file", e);
+                }
+            }
+        }
+    }
+
+    private class ResidentReadableChannel implements ReadableChannel {
+        private final Resident resident;
+        private final int blockSize;
+        private boolean open;
+        private long position;
+
+        private ResidentReadableChannel(Resident resident, int blockSize) {
+            this.resident = resident;
+            this.blockSize = blockSize;
+            this.open = true;
+            this.position = 0;
+        }
+
+        @Override
+        public int blockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                resident.release();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return position;
+        }
+
+        @Override
+        public void position(long newPosition) throws IOException {
+            this.position = newPosition;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int readLength = resident.buffer.read(position, dst);
+            if (readLength > 0) {
+                position += readLength;
+            }
+            return readLength;
+        }
+
+        @Override
+        public void setReadAheadBytes(int bufferSize) throws IOException {
+        }
+
+        @Override
+        public long size() throws IOException {
+            return resident.size;
+        }
+    }
+
+    /**
+     * Offers the finished buffer of a file that was just written. Returns true if the file was made resident, in
+     * which case the buffer now belongs to the residency; otherwise the caller still has to release it.
+     */
+    public boolean admit(String objectName, ChunkedReadBackBuffer buffer) {
+        long maximumSize = configuration.getPackResidencySize();
+        if (maximumSize <= 0 || !buffer.isFinished() || buffer.length() > maximumSize) {
+            return false;
+        }
+
+        Resident resident = new Resident(buffer, System.currentTimeMillis());
+        synchronized (this) {
+            Resident previous = residents.remove(objectName);
+            if (previous != null) {
+                residentSize -= previous.size;
+                previous.release();
+            }
+
+            evict(resident.admittedTime, maximumSize - resident.size);
+            residents.put(objectName, resident);
+            residentSize += resident.size;
+        }
+
+        logger.debug("Keeping pack file {} ({} bytes) resident", objectName, resident.size);
+        return true;
+    }
+
+    private void evict(long now, long targetSize) {
+        long maximumAge = configuration.getMaximumPackResidencyAge();
+
+        Iterator<Resident> iterator = residents.values().iterator();
+        while (iterator.hasNext()) {
+            Resident resident = iterator.next();
+            if (residentSize <= targetSize && now - resident.admittedTime <= maximumAge) {
+                break;
+            }
+
+            iterator.remove();
+            residentSize -= resident.size;
+            resident.release();
+        }
+    }
+
+    /**
+     * Opens a channel over a resident file, or returns null if the file isn't resident.
+     */
+    public ReadableChannel open(String objectName) {
+        Resident resident;
+        synchronized (this) {
+            evict(System.currentTimeMillis(), configuration.getPackResidencySize());
+            resident = residents.get(objectName);
+            if (resident == null || !resident.acquire()) {
+                resident = null;
+            }
+        }
+
+        if (resident == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return new ResidentReadableChannel(resident, configuration.getStreamingBlockSize());
+    }
+
+    public synchronized void remove(String objectName) {
+        Resident resident = residents.remove(objectName);
+        if (resident != null) {
+            residentSize -= resident.size;
+            resident.release();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Resident resident : residents.values()) {
+            resident.release();
+        }
+        residents.clear();
+        residentSize = 0;
+    }
+
+    public synchronized long getResidentSize() {
+        return residentSize;
+    }
+
+    public synchronized int getResidentCount() {
+        return residents.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -49,31 +49,49 @@ package org.chodavarapu.jgitaws.jgit;
 import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 /**
+ * Writes a file to S3 through a {@link ChunkedReadBackBuffer}, which also serves read-back of the written data. When
+ * created with an upload tracker, closing the stream doesn't wait for the upload: the upload is handed to the tracker
+ * instead, so that the uploads of all the files of a pack can be waited for together.
+ *
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class PipedDfsOutputStream extends DfsOutputStream {
     private static final Logger logger = LoggerFactory.getLogger(PipedDfsOutputStream.class);
-    private final PipedOutputStream out;
-
-    // TODO: Doing this with a second buffer is not a good approach. Come up with better one.
-    private final GrowingByteBuffer readBackSupportBuffer;
 
+    private final ChunkedReadBackBuffer buffer;
+    private final Observable<Void> upload;
+    private final PackResidency residency;
+    private final Consumer<Observable<Void>> uploadTracker;
     private final String objectName;
     private final int blockSize;
-
-    public PipedDfsOutputStream(PipedInputStream pipedInputStream, String objectName, int totalLength, int blockSize) throws IOException {
-        this.out = new PipedOutputStream(pipedInputStream);
+    private boolean closed;
+
+    public PipedDfsOutputStream(
+            ChunkedReadBackBuffer buffer,
+            Observable<Void> upload,
+            PackResidency residency,
+            Consumer<Observable<Void>> uploadTracker,
+            boolean streaming,
+            String objectName,
+            int blockSize) {
+        this.buffer = buffer;
+        this.upload = upload.cache();
+        this.residency = residency;
+        this.uploadTracker = uploadTracker;
         this.objectName = objectName;
-        this.readBackSupportBuffer = new GrowingByteBuffer(totalLength < 1 ? blockSize * 4 : totalLength);
         this.blockSize = blockSize;
+        this.closed = false;
+
+        if (streaming) {
+            this.upload.subscribe(v -> {}, t -> {});
+        }
     }
 
     @Override
@@ -81,63 +99,64 @@ public class PipedDfsOutputStream extends DfsOutputStream {
         return blockSize;
     }
 
-    @Override
-    public void write(int b) throws IOException {
-        out.write(b);
-
-        synchronized (readBackSupportBuffer) {
-            readBackSupportBuffer.write(b);
-        }
-    }
-
     @Override
     public void write(byte[] b) throws IOException {
-        out.write(b);
-
-        synchronized (readBackSupportBuffer) {
-            readBackSupportBuffer.write(b);
-        }
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] buf, int off, int len) throws IOException {
-        out.write(buf, off, len);
-
-        synchronized (readBackSupportBuffer) {
-            readBackSupportBuffer.write(buf, off, len);
-        }
+        buffer.write(buf, off, len);
     }
 
     @Override
     public int read(long position, ByteBuffer buf) throws IOException {
-        synchronized (readBackSupportBuffer) {
-            return readBackSupportBuffer.read(position, buf);
-        }
-    }
-
-    @Override
-    public void flush() throws IOException {
-        out.flush();
+        return buffer.read(position, buf);
     }
 
     @Override
     public void close() throws IOException {
-        logger.debug("Finished writing file {} to S3 bucket", objectName);
-        out.close();
-    }
+        if (closed) {
+            return;
+        }
+        closed = true;
 
-    private static class GrowingByteBuffer extends ByteArrayOutputStream {
-        public GrowingByteBuffer(int initialCapacity) {
-            super(initialCapacity);
+        try {
+            buffer.finish();
+        } catch (IOException e) {
+            releaseBuffer();
+            throw e;
         }
 
-        public int read(long position, ByteBuffer dest) {
-            int numberOfBytesToRead = dest.remaining();
+        Observable<Void> completion = upload
+                .lastOrDefault(null)
+                .doOnNext(v -> {
+                    logger.debug("Finished writing file {} to S3 bucket", objectName);
+                    if (residency == null || !residency.admit(objectName, buffer)) {
+                        releaseBuffer();
+                    }
+                })
+                .doOnError(t -> releaseBuffer())
+                .cache();
+        completion.subscribe(v -> {}, t -> {});
+
+        if (uploadTracker != null) {
+            uploadTracker.accept(completion);
+            return;
+        }
 
-            numberOfBytesToRead = (int) Math.min(numberOfBytesToRead, count - position);
-            dest.put(buf, (int) position, numberOfBytesToRead);
+        try {
+            completion.toBlocking().single();
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to write file " + objectName + " to S3 bucket", e);
+        }
+    }
 
-            return numberOfBytesToRead;
+    private void releaseBuffer() {
+        try {
+            buffer.release();
+        } catch (IOException e) {
+            logger.debug("Unable to release buffer of file {}", objectName, e);
         }
     }
 }
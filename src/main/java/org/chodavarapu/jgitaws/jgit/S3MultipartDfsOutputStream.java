@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.jgit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.aws.Backoff;
+import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.util.async.Async;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Writes a pack file to S3 using a multipart upload. Written data is cut into parts of the configured size, and each
+ * part is uploaded as soon as it is full, with a bounded number of part uploads in flight at a time. Failed parts are
+ * retried individually; the upload is completed when the stream is closed. Parts are uploaded straight out of the
+ * {@link ChunkedReadBackBuffer} that also serves read-back, so the written data is only held once. The multipart
+ * upload itself is only started when the first part is uploaded, so a file that is small enough to be inlined in its
+ * pack description never reaches S3. When created with an upload tracker, closing the stream doesn't wait for the
+ * upload to complete but hands it to the tracker.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class S3MultipartDfsOutputStream extends DfsOutputStream {
+    private static final Logger logger = LoggerFactory.getLogger(S3MultipartDfsOutputStream.class);
+    private static final long BASE_RETRY_BACKOFF_MILLIS = 100;
+    private static final long MAXIMUM_RETRY_BACKOFF_MILLIS = 5000;
+
+    private final JGitAwsConfiguration configuration;
+    private final String objectName;
+    private final String key;
+    private final int partSize;
+    private final Semaphore partsInFlight;
+    private final List<Observable<PartETag>> partUploads;
+    private final ChunkedReadBackBuffer buffer;
+    private final Consumer<Observable<Void>> uploadTracker;
+
+    private String uploadId;
+    private long uploadedLength;
+    private boolean closed;
+
+    public S3MultipartDfsOutputStream(
+            JGitAwsConfiguration configuration,
+            String objectName,
+            String key,
+            Consumer<Observable<Void>> uploadTracker) {
+        this.configuration = configuration;
+        this.objectName = objectName;
+        this.key = key;
+        this.uploadTracker = uploadTracker;
+        this.partSize = configuration.getMultipartUploadPartSize();
+        this.partsInFlight = new Semaphore(configuration.getMaximumPartUploadsInFlight());
+        this.partUploads = new ArrayList<>();
+        this.buffer = new ChunkedReadBackBuffer(
+                configuration.getStreamingBlockSize(),
+                configuration.getReadBackBufferSpillThreshold());
+        this.uploadedLength = 0;
+        this.closed = false;
+    }
+
+    private void initiate() {
+        uploadId = configuration.getPackRepository().withPacksBucket(() ->
+                configuration.getS3Client().initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(configuration.getPacksBucketName(), key))
+                        .getUploadId());
+
+        logger.debug("Started multipart upload {} of pack {} to S3 bucket", uploadId, objectName);
+    }
+
+    @Override
+    public int blockSize() {
+        return configuration.getStreamingBlockSize();
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = (int) Math.min(len, uploadedLength + partSize - buffer.length());
+            buffer.write(buf, off, n);
+
+            off += n;
+            len -= n;
+
+            if (buffer.length() - uploadedLength == partSize) {
+                uploadPart(partSize);
+            }
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buf) throws IOException {
+        int numberOfBytesRead = 0;
+
+        while (buf.hasRemaining()) {
+            int n = buffer.read(position + numberOfBytesRead, buf);
+            if (n < 0) {
+                break;
+            }
+            numberOfBytesRead += n;
+        }
+
+        return numberOfBytesRead;
+    }
+
+    private void uploadPart(long partLength) throws IOException {
+        if (uploadId == null) {
+            initiate();
+        }
+
+        try {
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        int partNumber = partUploads.size() + 1;
+        long partOffset = uploadedLength;
+        uploadedLength += partLength;
+
+        partUploads.add(Async.start(() -> {
+            try {
+                return uploadPart(partNumber, partOffset, partLength);
+            } finally {
+                partsInFlight.release();
+            }
+        }, configuration.getExecutionModel().getS3WritePool().getScheduler()));
+    }
+
+    private PartETag uploadPart(int partNumber, long partOffset, long partLength) {
+        int attempt = 1;
+        while (true) {
+            try {
+                PartETag partETag = configuration.getS3Client().uploadPart(
+                        new UploadPartRequest()
+                                .withBucketName(configuration.getPacksBucketName())
+                                .withKey(key)
+                                .withUploadId(uploadId)
+                                .withPartNumber(partNumber)
+                                .withPartSize(partLength)
+                                .withInputStream(buffer.newInputStream(partOffset, partLength)))
+                        .getPartETag();
+
+                logger.debug("Uploaded part {} of pack {} to S3 bucket", partNumber, objectName);
+                return partETag;
+            } catch (AmazonClientException e) {
+                if (attempt >= configuration.getMaximumPartUploadAttempts()) {
+                    throw e;
+                }
+
+                logger.debug("Upload of part {} of pack {} failed, retrying", partNumber, objectName, e);
+                try {
+                    Backoff.sleep(BASE_RETRY_BACKOFF_MILLIS, MAXIMUM_RETRY_BACKOFF_MILLIS, attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                attempt++;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            buffer.finish();
+            if (partUploads.isEmpty() && configuration.getPackRepository().inlineFile(objectName, buffer)) {
+                releaseBuffer();
+                return;
+            }
+
+            if (buffer.length() > uploadedLength || partUploads.isEmpty()) {
+                uploadPart(buffer.length() - uploadedLength);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+            releaseBuffer();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+
+        Observable<Void> completion = Observable.merge(partUploads)
+                .toList()
+                .map(partETags -> {
+                    partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+
+                    configuration.getS3Client().completeMultipartUpload(new CompleteMultipartUploadRequest(
+                            configuration.getPacksBucketName(), key, uploadId, partETags));
+                    logger.debug("Finished writing file {} ({} bytes in {} parts) to S3 bucket",
+                            objectName, buffer.length(), partETags.size());
+
+                    if (!configuration.getPackResidency().admit(objectName, buffer)) {
+                        releaseBuffer();
+                    }
+                    return (Void) null;
+                })
+                .doOnError(e -> {
+                    abort(e);
+                    releaseBuffer();
+                })
+                .cache();
+        completion.subscribe(v -> {}, e -> {});
+
+        if (uploadTracker != null) {
+            uploadTracker.accept(completion);
+            return;
+        }
+
+        try {
+            completion.toBlocking().single();
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void abort(Throwable e) {
+        if (uploadId == null) {
+            return;
+        }
+
+        logger.debug("Multipart upload of pack {} failed, aborting it", objectName, e);
+        try {
+            configuration.getS3Client().abortMultipartUpload(new AbortMultipartUploadRequest(
+                    configuration.getPacksBucketName(), key, uploadId));
+        } catch (RuntimeException abortException) {
+            e.addSuppressed(abortException);
+        }
+    }
+
+    private void releaseBuffer() {
+        try {
+            buffer.release();
+        } catch (IOException e) {
+            logger.debug("Unable to release buffer of pack {}", objectName, e);
+        }
+    }
+}
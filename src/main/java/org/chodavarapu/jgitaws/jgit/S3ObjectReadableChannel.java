@@ -46,33 +46,59 @@
  */
 package org.chodavarapu.jgitaws.jgit;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.aws.ExecutionModel;
+import org.chodavarapu.jgitaws.aws.S3BlockCache;
 import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.util.IO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.util.async.Async;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.TreeMap;
 
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class S3ObjectReadableChannel implements ReadableChannel {
+    private static final Logger logger = LoggerFactory.getLogger(S3ObjectReadableChannel.class);
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     private final String objectName;
+    private final TreeMap<Long, Observable<S3BlockCache.Block>> prefetchedBlocks;
     private JGitAwsConfiguration configuration;
     private boolean open;
     private long position;
     private int readAhead;
+    private int readAheadBlocks;
+    private long lastBlockOffset;
     private long size;
 
     public S3ObjectReadableChannel(JGitAwsConfiguration configuration, String objectName) {
+        this(configuration, objectName, -1);
+    }
+
+    public S3ObjectReadableChannel(JGitAwsConfiguration configuration, String objectName, long size) {
         this.configuration = configuration;
         this.objectName = objectName;
+        this.prefetchedBlocks = new TreeMap<>();
         this.open = true;
         this.position = 0;
         this.readAhead = 0;
-        this.size = -1;
+        this.readAheadBlocks = 0;
+        this.lastBlockOffset = -1;
+        this.size = size;
+    }
+
+    public String getObjectName() {
+        return objectName;
     }
 
     @Override
@@ -83,6 +109,7 @@ public class S3ObjectReadableChannel implements ReadableChannel {
     @Override
     public void close() throws IOException {
         open = false;
+        prefetchedBlocks.clear();
     }
 
     @Override
@@ -102,30 +129,136 @@ public class S3ObjectReadableChannel implements ReadableChannel {
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        S3Object object = configuration.getS3Client().getObject(
-                new GetObjectRequest(configuration.getPacksBucketName(), objectName)
-                        .withRange(position, position + dst.remaining() + readAhead));
+        if (size >= 0 && position >= size) {
+            return -1;
+        }
 
-        try (InputStream inputStream = object.getObjectContent()) {
-            size = object.getObjectMetadata().getInstanceLength();
+        long blockOffset = position - (position % blockSize());
+        adjustReadAhead(blockOffset);
+
+        S3BlockCache.Block block = readBlock(blockOffset);
+        if (block == null) {
+            return -1;
+        }
+
+        size = block.getObjectSize();
+        prefetch(blockOffset);
+
+        int offsetInBlock = (int) (position - blockOffset);
+        int readLength = Math.min(block.size() - offsetInBlock, dst.remaining());
+        if (readLength <= 0) {
+            return -1;
+        }
+
+        dst.put(block.getData(), offsetInBlock, readLength);
+        position += readLength;
+
+        return readLength;
+    }
+
+    private int initialReadAheadBlocks() {
+        return (readAhead + blockSize() - 1) / blockSize();
+    }
+
+    private void adjustReadAhead(long blockOffset) {
+        if (blockOffset == lastBlockOffset) {
+            return;
+        }
+
+        if (lastBlockOffset >= 0 && blockOffset == lastBlockOffset + blockSize()) {
+            readAheadBlocks = Math.min(
+                    Math.max(readAheadBlocks * 2, 2),
+                    Math.max(configuration.getMaximumReadAheadBlocks(), initialReadAheadBlocks()));
+        } else {
+            readAheadBlocks = initialReadAheadBlocks();
+        }
+
+        lastBlockOffset = blockOffset;
+    }
+
+    private S3BlockCache.Block readBlock(long blockOffset) throws IOException {
+        prefetchedBlocks.headMap(blockOffset).clear();
+
+        Observable<S3BlockCache.Block> prefetchedBlock = prefetchedBlocks.remove(blockOffset);
+        if (prefetchedBlock != null) {
+            try {
+                return prefetchedBlock.toBlocking().single();
+            } catch (RuntimeException e) {
+                logger.debug("Prefetch of block {} of {} failed, reading it again", blockOffset, objectName, e);
+            }
+        }
+
+        return configuration.getBlockCache().getOrLoad(
+                configuration.getPacksBucketName(), objectName, blockOffset, () -> loadBlock(blockOffset));
+    }
+
+    private void prefetch(long blockOffset) {
+        S3BlockCache cache = configuration.getBlockCache();
+        String bucketName = configuration.getPacksBucketName();
+        ExecutionModel.Pool pool = configuration.getExecutionModel().getS3ReadPool();
+
+        for (int i = 1; i <= readAheadBlocks; i++) {
+            long offset = blockOffset + (long) i * blockSize();
+            if (offset >= size) {
+                break;
+            }
 
-            int readLength = dst.remaining() + readAhead;
-            byte[] buffer = new byte[readLength];
+            if (prefetchedBlocks.containsKey(offset) || cache.contains(bucketName, objectName, offset)) {
+                continue;
+            }
 
-            inputStream.read(buffer);
-            dst.put(buffer, 0, readLength);
+            if (pool.isSaturated()) {
+                logger.debug("Skipping read-ahead of {} from offset {}, S3 read pool is busy", objectName, offset);
+                break;
+            }
 
-            return readLength;
+            prefetchedBlocks.put(offset, Async.start(() -> {
+                try {
+                    return cache.getOrLoad(bucketName, objectName, offset, () -> loadBlock(offset));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, pool.getScheduler()));
+        }
+    }
+
+    private S3BlockCache.Block loadBlock(long blockOffset) throws IOException {
+        S3Object object;
+        try {
+            object = configuration.getS3Client().getObject(
+                    new GetObjectRequest(configuration.getPacksBucketName(), objectName)
+                            .withRange(blockOffset, blockOffset + blockSize() - 1));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == REQUESTED_RANGE_NOT_SATISFIABLE) {
+                return null;
+            }
+            throw e;
+        }
+
+        try (InputStream inputStream = object.getObjectContent()) {
+            long objectSize = object.getObjectMetadata().getInstanceLength();
+
+            byte[] data = new byte[(int) Math.min(blockSize(), objectSize - blockOffset)];
+            IO.readFully(inputStream, data, 0, data.length);
+
+            return new S3BlockCache.Block(data, objectSize);
         }
     }
 
     @Override
     public void setReadAheadBytes(int bufferSize) throws IOException {
         this.readAhead = bufferSize;
+        this.readAheadBlocks = Math.max(readAheadBlocks, initialReadAheadBlocks());
     }
 
     @Override
     public long size() throws IOException {
+        if (size < 0) {
+            size = configuration.getS3Client()
+                    .getObjectMetadata(configuration.getPacksBucketName(), objectName)
+                    .getContentLength();
+        }
+
         return size;
     }
 }
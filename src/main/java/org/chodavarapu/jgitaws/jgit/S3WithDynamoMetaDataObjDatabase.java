@@ -48,15 +48,30 @@ package org.chodavarapu.jgitaws.jgit;
 
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
 import org.eclipse.jgit.internal.storage.dfs.*;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
 import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.util.async.Async;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
@@ -64,8 +79,19 @@ import java.util.List;
 public class S3WithDynamoMetaDataObjDatabase extends DfsObjDatabase {
     private static final Logger logger = LoggerFactory.getLogger(S3WithDynamoMetaDataObjDatabase.class);
 
+    // Referenced here so the extension is registered before any pack descriptions are read
+    private static final PackExt BLOOM_FILTER = PackBloomFilter.EXTENSION;
+
+    // Bloom filters are built from a copy of the index as it is written, up to this size
+    private static final int MAXIMUM_COPIED_INDEX_SIZE = 64 * 1024 * 1024;
+
     private final JGitAwsConfiguration configuration;
     private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, PackBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    private final Set<String> loadingBloomFilters = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, byte[]> writtenIndexes = new ConcurrentHashMap<>();
+    private final ThreadLocal<String> preferredPack = new ThreadLocal<>();
+    private final ConcurrentHashMap<String, List<Observable<Void>>> uploads = new ConcurrentHashMap<>();
 
     public S3WithDynamoMetaDataObjDatabase(
             AmazonRepository repository,
@@ -81,19 +107,319 @@ public class S3WithDynamoMetaDataObjDatabase extends DfsObjDatabase {
         int totalCount = (desc == null ? 0 : desc.size()) + (replaces == null ? 0 : replaces.size());
         logger.debug("Committing {} packs for repository {}", totalCount,
                 getRepository().getDescription().getRepositoryName());
-        configuration.getPackDescriptionRepository().updatePackDescriptions(desc, replaces)
-                .doOnCompleted(() -> logger.debug("Commit of {} packs to S3 complete!", totalCount)).toBlocking().last();
+
+        awaitUploads(desc);
+
+        if (desc != null && configuration.isPackBloomFiltersEnabled()) {
+            for (DfsPackDescription pack : desc) {
+                writeBloomFilter(pack);
+            }
+            awaitUploads(desc);
+        }
+
+        try {
+            configuration.getPackDescriptionRepository().updatePackDescriptions(desc, replaces)
+                    .doOnCompleted(() -> logger.debug("Commit of {} packs to S3 complete!", totalCount))
+                    .toBlocking()
+                    .last();
+            configuration.getPackDescriptionRepository()
+                    .bumpPackListVersion(getRepository().getDescription().getRepositoryName())
+                    .toBlocking()
+                    .lastOrDefault(null);
+        } catch (RuntimeException e) {
+            configuration.getPackRepository().removePendingInlineFiles(desc);
+            throw e;
+        }
+
+        if (configuration.isObjectIndexEnabled()) {
+            updateObjectIndexLater(desc, replaces);
+        }
+
+        configuration.getPackCompactionScheduler().onPacksCommitted((AmazonRepository) getRepository(), desc);
+    }
+
+    private List<Observable<Void>> takeUploads(Collection<DfsPackDescription> packs) {
+        List<Observable<Void>> pending = new ArrayList<>();
+        if (packs != null) {
+            for (DfsPackDescription pack : packs) {
+                List<Observable<Void>> packUploads = uploads.remove(pack.getFileName(PackExt.PACK));
+                if (packUploads != null) {
+                    synchronized (packUploads) {
+                        pending.addAll(packUploads);
+                    }
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for the files of the given packs to finish uploading. The uploads run concurrently, so this takes about
+     * as long as the slowest of them; the first upload to fail fails the wait.
+     */
+    private void awaitUploads(Collection<DfsPackDescription> packs) throws IOException {
+        List<Observable<Void>> pending = takeUploads(packs);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        logger.debug("Waiting for {} pack file uploads to finish", pending.size());
+        try {
+            Observable.merge(pending).toBlocking().lastOrDefault(null);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to write pack files to S3 bucket", e);
+        }
+    }
+
+    private PackIndex readIndex(DfsPackDescription pack) {
+        if (!pack.hasFileExt(PackExt.INDEX)) {
+            return null;
+        }
+
+        try (ReadableChannel channel = openFile(pack, PackExt.INDEX)) {
+            return PackIndex.read(new BufferedInputStream(Channels.newInputStream(channel)));
+        } catch (IOException e) {
+            logger.debug("Unable to read index of pack {}", pack.getFileName(PackExt.PACK), e);
+            return null;
+        }
+    }
+
+    /**
+     * Updates the object index for committed packs on the indexing pool, after the pack list has been updated. The
+     * objects of the new packs are added (overwriting the entries of objects that were repacked), and then the
+     * entries of objects that were only in replaced packs are removed. If the indexing pool is full the object index
+     * is left as it is, which only means that lookups of the new objects search every pack.
+     */
+    private void updateObjectIndexLater(Collection<DfsPackDescription> packs, Collection<DfsPackDescription> replaces) {
+        List<DfsPackDescription> added = packs == null ? Collections.emptyList() : new ArrayList<>(packs);
+        List<DfsPackDescription> removed = replaces == null ? Collections.emptyList() : new ArrayList<>(replaces);
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        String repositoryName = getRepository().getDescription().getRepositoryName();
+        try {
+            configuration.getExecutionModel().getIndexingPool().execute(() -> {
+                try {
+                    updateObjectIndex(repositoryName, added, removed);
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to update object index of repository {}", repositoryName, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Indexing pool is full, not updating object index of repository {} for {} packs",
+                    repositoryName, added.size() + removed.size());
+        }
+    }
+
+    private void updateObjectIndex(
+            String repositoryName,
+            List<DfsPackDescription> added,
+            List<DfsPackDescription> removed) {
+        List<PackIndex> addedIndexes = new ArrayList<>();
+        for (DfsPackDescription pack : added) {
+            PackIndex index = readIndex(pack);
+            if (index != null) {
+                addedIndexes.add(index);
+                configuration.getObjectIndexRepository()
+                        .addObjects(repositoryName, pack.getFileName(PackExt.PACK), index)
+                        .toBlocking()
+                        .lastOrDefault(null);
+            }
+        }
+
+        for (DfsPackDescription pack : removed) {
+            PackIndex index = readIndex(pack);
+            if (index != null) {
+                configuration.getObjectIndexRepository()
+                        .removeObjects(repositoryName, pack.getFileName(PackExt.PACK), index, addedIndexes)
+                        .toBlocking()
+                        .lastOrDefault(null);
+            }
+        }
+    }
+
+    /**
+     * Writes the bloom filter of a new pack, built from the copy of its index that was kept when the index was
+     * written, so that committing the pack doesn't have to read the index back from S3. Packs whose index wasn't
+     * copied (because it was too large) get no filter, and are always checked.
+     */
+    private void writeBloomFilter(DfsPackDescription pack) {
+        byte[] indexBytes = writtenIndexes.remove(pack.getFileName(PackExt.PACK));
+        if (pack.hasFileExt(BLOOM_FILTER) || indexBytes == null) {
+            return;
+        }
+
+        try {
+            PackIndex index = PackIndex.read(new ByteArrayInputStream(indexBytes));
+            PackBloomFilter filter = PackBloomFilter.create(index, configuration.getPackBloomFilterBitsPerObject());
+            byte[] bytes = filter.toByteArray();
+
+            pack.setFileSize(BLOOM_FILTER, bytes.length);
+            try (DfsOutputStream out = writeFile(pack, BLOOM_FILTER)) {
+                out.write(bytes);
+            }
+            pack.addFileExt(BLOOM_FILTER);
+
+            bloomFilters.put(pack.getFileName(BLOOM_FILTER), filter);
+        } catch (IOException e) {
+            logger.debug("Unable to write bloom filter of pack {}", pack.getFileName(PackExt.PACK), e);
+        }
+    }
+
+    /**
+     * Returns the bloom filter of a pack if it has been loaded, and otherwise starts loading it in the background and
+     * returns null.
+     */
+    private PackBloomFilter getBloomFilter(DfsPackDescription pack) {
+        if (!pack.hasFileExt(BLOOM_FILTER)) {
+            return null;
+        }
+
+        String fileName = pack.getFileName(BLOOM_FILTER);
+        PackBloomFilter filter = bloomFilters.get(fileName);
+        if (filter == null && loadingBloomFilters.add(fileName)) {
+            Async.fromCallable(() -> {
+                try (InputStream in = new BufferedInputStream(
+                        Channels.newInputStream(openFile(pack, BLOOM_FILTER)))) {
+                    return PackBloomFilter.read(in);
+                }
+            }, configuration.getExecutionModel().getS3ReadPool().getScheduler())
+                    .doOnTerminate(() -> loadingBloomFilters.remove(fileName))
+                    .subscribe(
+                            loaded -> bloomFilters.put(fileName, loaded),
+                            e -> logger.debug("Unable to read bloom filter {}", fileName, e));
+        }
+
+        return filter;
+    }
+
+    /**
+     * Checks the bloom filters of the packs before their indexes, so that only the indexes of packs that may have
+     * the object are read. Packs without a bloom filter, or whose filter hasn't been loaded yet, are always checked;
+     * a lookup never waits for a filter to load. Packs of unreachable garbage are checked after all other packs.
+     * <p>
+     * Only lookups made through this method (like {@code Repository.hasObject}) use the filters. Object readers, which
+     * JGit uses for most lookups (including the connectivity check of a push), go through the packs themselves, and
+     * as {@link DfsReader} and {@link DfsPackFile} are final they can't be made to check the filters.
+     */
+    @Override
+    public boolean has(AnyObjectId objectId) throws IOException {
+        if (!configuration.isPackBloomFiltersEnabled()) {
+            return super.has(objectId);
+        }
+
+        DfsPackFile[] packs = getPacks();
+        try (ObjectReader reader = newReader()) {
+            return hasObject((DfsReader) reader, packs, objectId, false) ||
+                    hasObject((DfsReader) reader, packs, objectId, true);
+        }
+    }
+
+    private boolean hasObject(DfsReader reader, DfsPackFile[] packs, AnyObjectId objectId, boolean garbage)
+            throws IOException {
+        for (DfsPackFile pack : packs) {
+            DfsPackDescription desc = pack.getPackDescription();
+            if ((desc.getPackSource() == PackSource.UNREACHABLE_GARBAGE) != garbage) {
+                continue;
+            }
+
+            PackBloomFilter filter = getBloomFilter(desc);
+            if (filter != null && !filter.mightContain(objectId)) {
+                continue;
+            }
+
+            if (pack.hasObject(reader, objectId)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Looks up the pack of the object in the object index, and if there is one makes the reader check that pack
+     * first, so that only its index has to be read.
+     * <p>
+     * Only objects opened through this method (like {@code Repository.open}) use the object index. Object readers,
+     * which JGit uses for most reads (including walks such as a {@code TreeWalk} or {@code RevWalk}), look objects up
+     * in the packs themselves.
+     */
+    @Override
+    public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+        if (!configuration.isObjectIndexEnabled()) {
+            return super.open(objectId, typeHint);
+        }
+
+        String packName;
+        try {
+            packName = configuration.getObjectIndexRepository()
+                    .getPackName(getRepository().getDescription().getRepositoryName(), objectId)
+                    .toBlocking()
+                    .singleOrDefault(null);
+        } catch (RuntimeException e) {
+            logger.debug("Unable to look up object {} in object index", objectId.name(), e);
+            packName = null;
+        }
+
+        if (packName == null) {
+            return super.open(objectId, typeHint);
+        }
+
+        preferredPack.set(packName);
+        try {
+            return super.open(objectId, typeHint);
+        } finally {
+            preferredPack.remove();
+        }
+    }
+
+    @Override
+    public DfsPackFile[] getPacks() throws IOException {
+        DfsPackFile[] packs = super.getPacks();
+
+        String preferred = preferredPack.get();
+        if (preferred == null) {
+            return packs;
+        }
+
+        for (int i = 1; i < packs.length; i++) {
+            if (preferred.equals(packs[i].getPackDescription().getFileName(PackExt.PACK))) {
+                DfsPackFile[] reordered = new DfsPackFile[packs.length];
+                reordered[0] = packs[i];
+                System.arraycopy(packs, 0, reordered, 1, i);
+                System.arraycopy(packs, i + 1, reordered, i + 1, packs.length - i - 1);
+                return reordered;
+            }
+        }
+
+        return packs;
     }
 
     @Override
     protected List<DfsPackDescription> listPacks() throws IOException {
         logger.debug("Retrieving list of packs for repository {}", getRepository().getDescription().getRepositoryName());
-        return configuration.getPackDescriptionRepository().getAllPackDescriptions((AmazonRepository) getRepository())
+        List<DfsPackDescription> packs = configuration.getPackDescriptionRepository()
+                .getAllPackDescriptions((AmazonRepository) getRepository())
                 .toList()
                 .doOnNext(l -> logger.debug("Retrieved {} packs for repository {}",
                         l == null ? 0 : l.size(), getRepository().getDescription().getRepositoryName()))
                 .toBlocking()
                 .lastOrDefault(Collections.emptyList());
+
+        if (configuration.isPackBloomFiltersEnabled()) {
+            // Start loading the bloom filters of new packs, and forget the filters of packs that are gone
+            Set<String> fileNames = new HashSet<>();
+            for (DfsPackDescription pack : packs) {
+                if (pack.hasFileExt(BLOOM_FILTER)) {
+                    fileNames.add(pack.getFileName(BLOOM_FILTER));
+                    getBloomFilter(pack);
+                }
+            }
+            bloomFilters.keySet().retainAll(fileNames);
+        }
+
+        return packs;
     }
 
     @Override
@@ -116,10 +442,18 @@ public class S3WithDynamoMetaDataObjDatabase extends DfsObjDatabase {
         }
         packName.append(System.currentTimeMillis());
         packName.append('-');
-        packName.append(random.nextInt(100));
+
+        // 128 random bits, so that packs created at the same time by concurrent pushes can't get the same name
+        byte[] suffix = new byte[16];
+        random.nextBytes(suffix);
+        for (byte b : suffix) {
+            packName.append(Character.forDigit((b >> 4) & 0xf, 16));
+            packName.append(Character.forDigit(b & 0xf, 16));
+        }
 
         logger.debug("Created new pack file {}", packName);
-        return new DfsPackDescription(getRepository().getDescription(), packName.toString());
+        return new DfsPackDescription(getRepository().getDescription(), packName.toString())
+                .setPackSource(source);
     }
 
     @Override
@@ -139,18 +473,46 @@ public class S3WithDynamoMetaDataObjDatabase extends DfsObjDatabase {
             }
         }
         try {
+            // Let uploads that are still running finish first, so that they don't recreate deleted files
+            Observable.mergeDelayError(Observable.from(takeUploads(descriptions)))
+                    .onErrorResumeNext(Observable.<Void>empty())
+                    .toBlocking()
+                    .lastOrDefault(null);
             configuration.getPackRepository().deletePacks(descriptions).toBlocking().last();
         } catch (Exception e) {
             logger.debug("Error occurred while trying to rollback a pack commit operation!", e);
+        } finally {
+            // After the uploads have finished, as a file is only inlined when its stream is closed
+            configuration.getPackRepository().removePendingInlineFiles(descriptions);
+            if (descriptions != null) {
+                for (DfsPackDescription desc : descriptions) {
+                    writtenIndexes.remove(desc.getFileName(PackExt.PACK));
+                }
+            }
         }
     }
 
     @Override
     protected DfsOutputStream writeFile(DfsPackDescription desc, PackExt ext) throws IOException {
         logger.debug("Writing pack file {} to S3 bucket", desc.getFileName(ext));
-        return configuration.getPackRepository().savePack(
+        DfsOutputStream out = configuration.getPackRepository().savePack(
                 desc.getRepositoryDescription().getRepositoryName(),
                 desc.getFileName(ext),
-                desc.getFileSize(ext));
+                desc.getFileSize(ext),
+                upload -> {
+                    List<Observable<Void>> packUploads = uploads.computeIfAbsent(
+                            desc.getFileName(PackExt.PACK), name -> new ArrayList<>());
+                    synchronized (packUploads) {
+                        packUploads.add(upload);
+                    }
+                });
+
+        if (ext == PackExt.INDEX && configuration.isPackBloomFiltersEnabled()) {
+            String packName = desc.getFileName(PackExt.PACK);
+            return new CopyingDfsOutputStream(out, MAXIMUM_COPIED_INDEX_SIZE,
+                    index -> writtenIndexes.put(packName, index));
+        }
+
+        return out;
     }
 }
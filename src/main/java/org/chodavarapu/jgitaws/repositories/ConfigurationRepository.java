@@ -57,6 +57,8 @@ import rx.Observable;
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class ConfigurationRepository {
+    public static final int MAXIMUM_CONFIGURATION_SIZE = 399 * 1024;
+
     private static final String REPOSITORY_NAME_ATTRIBUTE = "RepositoryName";
     private static final String TEXT_ATTRIBUTE = "Text";
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.repositories;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * Maps the objects of a repository to the pack (and the offset in the pack) they are stored in, so that a single
+ * object can be found without reading the index of every pack. Items are sharded by a prefix of the object id, with
+ * a hash key of {@code <repository>/<prefix>}, so that the objects of one repository are spread over
+ * {@code 16^}{@link JGitAwsConfiguration#getObjectIndexShardPrefixLength()} partitions.
+ * <p>
+ * Entries are overwritten when an object is repacked, and removed when the packs that held an object are replaced by
+ * packs that don't have it. Entries are written after the pack list is updated though, so an entry can still point
+ * to a pack that no longer exists (or be missing for an object that does); callers must check that the pack is
+ * still in the pack list, and fall back to searching every pack.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class ObjectIndexRepository {
+    private static final Logger logger = LoggerFactory.getLogger(ObjectIndexRepository.class);
+
+    private static final int MAXIMUM_OPERATIONS_PER_BATCH = 25;
+    private static final int MAXIMUM_BATCHES_IN_FLIGHT = 8;
+    private static final int MAXIMUM_DELETES_IN_FLIGHT = 32;
+
+    private static final String SHARD_ATTRIBUTE = "Shard";
+    private static final String OBJECT_ID_ATTRIBUTE = "ObjectId";
+    private static final String PACK_ATTRIBUTE = "Pack";
+    private static final String OFFSET_ATTRIBUTE = "Offset";
+
+    private final JGitAwsConfiguration configuration;
+    private final Supplier<CreateTableRequest> tableCreator;
+
+    public ObjectIndexRepository(JGitAwsConfiguration configuration) {
+        this.configuration = configuration;
+        this.tableCreator = () ->
+                new CreateTableRequest()
+                        .withTableName(configuration.getObjectIndexTableName())
+                        .withKeySchema(
+                                new KeySchemaElement()
+                                        .withAttributeName(SHARD_ATTRIBUTE)
+                                        .withKeyType(KeyType.HASH),
+                                new KeySchemaElement()
+                                        .withAttributeName(OBJECT_ID_ATTRIBUTE)
+                                        .withKeyType(KeyType.RANGE))
+                        .withAttributeDefinitions(
+                                new AttributeDefinition()
+                                        .withAttributeName(SHARD_ATTRIBUTE)
+                                        .withAttributeType(ScalarAttributeType.S),
+                                new AttributeDefinition()
+                                        .withAttributeName(OBJECT_ID_ATTRIBUTE)
+                                        .withAttributeType(ScalarAttributeType.S))
+                        .withProvisionedThroughput(new ProvisionedThroughput(
+                                configuration.getInitialObjectIndexTableReadThroughput(),
+                                configuration.getInitialObjectIndexTableWriteThroughput()));
+    }
+
+    private PrimaryKey objectKey(String repositoryName, String objectId) {
+        String shard = new StringBuilder(repositoryName)
+                .append('/')
+                .append(objectId, 0, configuration.getObjectIndexShardPrefixLength())
+                .toString();
+
+        return new PrimaryKey(
+                new KeyAttribute(SHARD_ATTRIBUTE, shard),
+                new KeyAttribute(OBJECT_ID_ATTRIBUTE, objectId));
+    }
+
+    /**
+     * Records every object of the given pack index as being stored in the given pack.
+     */
+    public Observable<Void> addObjects(String repositoryName, String packName, PackIndex index) {
+        logger.debug("Indexing {} objects of pack {} of repository {}",
+                index.getObjectCount(), packName, repositoryName);
+
+        // The entries of a pack index are reused while iterating, so they are turned into items straight away
+        return Observable.from(index)
+                .map(entry -> new Item()
+                        .withPrimaryKey(objectKey(repositoryName, entry.name()))
+                        .withString(PACK_ATTRIBUTE, packName)
+                        .withLong(OFFSET_ATTRIBUTE, entry.getOffset()))
+                .buffer(MAXIMUM_OPERATIONS_PER_BATCH)
+                .map(items -> new TableWriteItems(configuration.getObjectIndexTableName()).withItemsToPut(items))
+                .flatMap(request -> configuration.getDynamoClient().updateItems(request, tableCreator),
+                        MAXIMUM_BATCHES_IN_FLIGHT)
+                .lastOrDefault(null);
+    }
+
+    /**
+     * Removes the entries of the objects of a replaced pack that aren't in any of the packs that replaced it. The
+     * objects that are in the new packs had their entries overwritten when the new packs were added. An entry is only
+     * removed while it still points to the replaced pack, as the object may have been written to another pack since;
+     * batch writes can't be conditional, so the entries are deleted one at a time.
+     */
+    public Observable<Void> removeObjects(
+            String repositoryName,
+            String packName,
+            PackIndex index,
+            Collection<PackIndex> replacements) {
+        logger.debug("Removing objects of replaced pack {} of repository {} from object index",
+                packName, repositoryName);
+
+        return Observable.from(index)
+                .filter(entry -> {
+                    for (PackIndex replacement : replacements) {
+                        if (replacement.hasObject(entry.toObjectId())) {
+                            return false;
+                        }
+                    }
+                    return true;
+                })
+                .map(entry -> objectKey(repositoryName, entry.name()))
+                .flatMap(key -> configuration.getDynamoClient().deleteItem(
+                        configuration.getObjectIndexTableName(),
+                        new DeleteItemSpec()
+                                .withPrimaryKey(key)
+                                .withConditionExpression("#pack = :pack")
+                                .withNameMap(new NameMap().with("#pack", PACK_ATTRIBUTE))
+                                .withValueMap(new ValueMap().withString(":pack", packName)))
+                        .onErrorResumeNext(t -> t instanceof ConditionalCheckFailedException ?
+                                Observable.empty() : Observable.error(t)),
+                        MAXIMUM_DELETES_IN_FLIGHT)
+                .lastOrDefault(null);
+    }
+
+    /**
+     * Returns the name of the pack an object was last recorded in, or null if the object isn't in the index.
+     */
+    public Observable<String> getPackName(String repositoryName, AnyObjectId objectId) {
+        return configuration.getDynamoClient().getItem(
+                configuration.getObjectIndexTableName(),
+                objectKey(repositoryName, objectId.name()))
+                .map(item -> item == null ? null : item.getString(PACK_ATTRIBUTE));
+    }
+}
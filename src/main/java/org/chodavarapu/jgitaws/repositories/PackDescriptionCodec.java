@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.repositories;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes the contents of a {@link DfsPackDescription} for storage in the pack descriptions table. The binary
+ * encoding is a version byte followed by variable length numbers:
+ * <pre>
+ * version:byte source:string modified:varlong objects:varlong deltas:varlong ixVersion:varint
+ * extCount:varint ( ext:string size:varlong )*
+ * </pre>
+ * where strings are a varint length followed by ASCII bytes (an empty pack source is written as a zero length
+ * string). File extensions are written by name rather than by position, as the set of {@link PackExt}s can differ
+ * between processes. The older JSON encoding can still be read.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackDescriptionCodec {
+    private static final int VERSION = 1;
+
+    private PackDescriptionCodec() {
+    }
+
+    public static byte[] encode(DfsPackDescription desc) {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+
+        buffer = ensureCapacity(buffer, 1);
+        buffer.put((byte) VERSION);
+        buffer = writeString(buffer, desc.getPackSource() == null ? "" : desc.getPackSource().name());
+        buffer = writeVarLong(buffer, desc.getLastModified());
+        buffer = writeVarLong(buffer, desc.getObjectCount());
+        buffer = writeVarLong(buffer, desc.getDeltaCount());
+        buffer = writeVarLong(buffer, desc.getIndexVersion());
+
+        int extCount = 0;
+        for (PackExt ext : PackExt.values()) {
+            if (desc.hasFileExt(ext)) {
+                extCount++;
+            }
+        }
+
+        buffer = writeVarLong(buffer, extCount);
+        for (PackExt ext : PackExt.values()) {
+            if (desc.hasFileExt(ext)) {
+                buffer = writeString(buffer, ext.getExtension());
+                buffer = writeVarLong(buffer, desc.getFileSize(ext));
+            }
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    public static DfsPackDescription decode(byte[] encoded, DfsPackDescription desc) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported pack description encoding version " + version);
+        }
+
+        String source = readString(buffer);
+        desc.setPackSource(source.isEmpty() ? null : DfsObjDatabase.PackSource.valueOf(source))
+                .setLastModified(readVarLong(buffer))
+                .setObjectCount(readVarLong(buffer))
+                .setDeltaCount(readVarLong(buffer))
+                .setIndexVersion((int) readVarLong(buffer))
+                .clearPackStats();
+
+        long extCount = readVarLong(buffer);
+        for (long i = 0; i < extCount; i++) {
+            String extension = readString(buffer);
+            long size = readVarLong(buffer);
+
+            PackExt ext = findPackExt(extension);
+            if (ext != null) {
+                desc.addFileExt(ext);
+                desc.setFileSize(ext, size);
+            }
+        }
+
+        return desc;
+    }
+
+    private static PackExt findPackExt(String extension) {
+        for (PackExt ext : PackExt.values()) {
+            if (ext.getExtension().equals(extension)) {
+                return ext;
+            }
+        }
+        return null;
+    }
+
+    public static DfsPackDescription fromJson(String json, DfsPackDescription desc) {
+        JSONObject object = new JSONObject(json);
+
+        desc.setPackSource(object.optEnum(DfsObjDatabase.PackSource.class, "source"))
+                .setLastModified(object.optLong("modified"))
+                .setObjectCount(object.optLong("objects"))
+                .setDeltaCount(object.optLong("deltas"))
+                .setIndexVersion(object.optInt("ixVersion"))
+                .clearPackStats();
+
+        for (PackExt ext : PackExt.values()) {
+            if (object.has(ext.getExtension() + "Size")) {
+                desc.addFileExt(ext);
+                desc.setFileSize(ext, object.getLong(ext.getExtension() + "Size"));
+            }
+        }
+
+        return desc;
+    }
+
+    public static String toJson(DfsPackDescription desc) {
+        JSONObject json = new JSONObject()
+                .put("modified", desc.getLastModified())
+                .put("objects", desc.getObjectCount())
+                .put("deltas", desc.getDeltaCount())
+                .put("ixVersion", desc.getIndexVersion());
+
+        for (PackExt ext : PackExt.values()) {
+            if (desc.hasFileExt(ext)) {
+                json.put(ext.getExtension() + "Size", desc.getFileSize(ext));
+            }
+        }
+
+        if (desc.getPackSource() != null) {
+            json.put("source", desc.getPackSource().name());
+        }
+
+        return json.toString();
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int length) {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static ByteBuffer writeVarLong(ByteBuffer buffer, long value) {
+        buffer = ensureCapacity(buffer, 10);
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return buffer;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed pack description");
+    }
+
+    private static ByteBuffer writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        buffer = writeVarLong(buffer, bytes.length);
+        buffer = ensureCapacity(buffer, bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.US_ASCII);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
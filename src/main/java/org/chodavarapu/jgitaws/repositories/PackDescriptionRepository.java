@@ -50,20 +50,27 @@ import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.*;
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
 import org.chodavarapu.jgitaws.jgit.AmazonRepository;
-import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
 import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
 import org.eclipse.jgit.internal.storage.pack.PackExt;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.Observable;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -78,12 +85,19 @@ public class PackDescriptionRepository {
     private static final String NAME_ATTRIBUTE = "Name";
     private static final String REPOSITORY_NAME_ATTRIBUTE = "RepositoryName";
     private static final String DESCRIPTION_ATTRIBUTE = "Description";
+    private static final String ENCODED_DESCRIPTION_ATTRIBUTE = "EncodedDescription";
+    private static final String VERSION_ATTRIBUTE = "Version";
+    private static final String VERSION_ITEM_NAME = ".version";
+    private static final String VERSION_HASH_KEY_SUFFIX = "#version";
+    private static final String INLINE_FILE_ATTRIBUTE_PREFIX = "Inline.";
 
     private final JGitAwsConfiguration configuration;
     private final Supplier<CreateTableRequest> tableCreator;
+    private final ConcurrentHashMap<String, PackList> packLists;
 
     public PackDescriptionRepository(JGitAwsConfiguration configuration) {
         this.configuration = configuration;
+        this.packLists = new ConcurrentHashMap<>();
         this.tableCreator = () ->
                 new CreateTableRequest()
                         .withTableName(configuration.getPackDescriptionsTableName())
@@ -106,44 +120,23 @@ public class PackDescriptionRepository {
                                 configuration.getInitialPackDescriptionsTableWriteThroughput()));
     }
 
-    private static DfsPackDescription fromJson(String json, DfsPackDescription desc) {
-        JSONObject object = new JSONObject(json);
-
-        desc.setPackSource(object.optEnum(DfsObjDatabase.PackSource.class, "source"))
-                .setLastModified(object.optLong("modified"))
-                .setObjectCount(object.optLong("objects"))
-                .setDeltaCount(object.optLong("deltas"))
-                .setIndexVersion(object.optInt("ixVersion"))
+    private static DfsPackDescription copyOf(DfsPackDescription desc, DfsRepositoryDescription repositoryDescription) {
+        DfsPackDescription copy = new DfsPackDescription(repositoryDescription, desc.getFileName(PackExt.PACK))
+                .setPackSource(desc.getPackSource())
+                .setLastModified(desc.getLastModified())
+                .setObjectCount(desc.getObjectCount())
+                .setDeltaCount(desc.getDeltaCount())
+                .setIndexVersion(desc.getIndexVersion())
                 .clearPackStats();
 
-        for (PackExt ext : PackExt.values()) {
-            if (object.has(ext.getExtension() + "Size")) {
-                desc.addFileExt(ext);
-                desc.setFileSize(ext, object.getLong(ext.getExtension() + "Size"));
-            }
-        }
-
-        return desc;
-    }
-
-    private static String toJson(DfsPackDescription desc) {
-        JSONObject json = new JSONObject()
-                .put("modified", desc.getLastModified())
-                .put("objects", desc.getObjectCount())
-                .put("deltas", desc.getDeltaCount())
-                .put("ixVersion", desc.getIndexVersion());
-
         for (PackExt ext : PackExt.values()) {
             if (desc.hasFileExt(ext)) {
-                json.put(ext.getExtension() + "Size", desc.getFileSize(ext));
+                copy.addFileExt(ext);
+                copy.setFileSize(ext, desc.getFileSize(ext));
             }
         }
 
-        if (desc.getPackSource() != null) {
-            json.put("source", desc.getPackSource().name());
-        }
-
-        return json.toString();
+        return copy;
     }
 
     private String packName(DfsPackDescription desc) {
@@ -208,32 +201,156 @@ public class PackDescriptionRepository {
 
     private List<Item> createItemsToPutList(List<PackDescriptionOperation> portion) {
         return operationsOfType(portion, Operation.ADDITION)
-                .map(addition ->
-                        new Item()
-                                .withPrimaryKey(new PrimaryKey(
-                                        new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE,
-                                                addition.getRepositoryDescription().getRepositoryName()),
-                                        new KeyAttribute(NAME_ATTRIBUTE, packName(addition))))
-                                .withString(DESCRIPTION_ATTRIBUTE, toJson(addition)))
+                .map(addition -> createItem(addition))
                 .collect(Collectors.toList());
     }
 
+    private Item createItem(DfsPackDescription addition) {
+        String repositoryName = addition.getRepositoryDescription().getRepositoryName();
+        Item item = new Item()
+                .withPrimaryKey(new PrimaryKey(
+                        new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, repositoryName),
+                        new KeyAttribute(NAME_ATTRIBUTE, packName(addition))))
+                .withBinary(ENCODED_DESCRIPTION_ATTRIBUTE, PackDescriptionCodec.encode(addition))
+                // Still written for processes that only read the JSON description, until they have all been upgraded
+                .withString(DESCRIPTION_ATTRIBUTE, PackDescriptionCodec.toJson(addition));
+
+        for (PackExt ext : PackExt.values()) {
+            if (addition.hasFileExt(ext)) {
+                byte[] inlineFile = configuration.getPackRepository()
+                        .getPendingInlineFile(repositoryName, addition.getFileName(ext));
+                if (inlineFile != null) {
+                    item.withBinary(INLINE_FILE_ATTRIBUTE_PREFIX + ext.getExtension(), inlineFile);
+                }
+            }
+        }
+
+        return item;
+    }
+
+    /**
+     * Returns the key of the pack list version of a repository. The version item is kept outside the packs of the
+     * repository, as processes that predate it would take it for a pack when listing them.
+     */
+    private PrimaryKey versionKey(String repositoryName) {
+        return new PrimaryKey(
+                new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, repositoryName + VERSION_HASH_KEY_SUFFIX),
+                new KeyAttribute(NAME_ATTRIBUTE, VERSION_ITEM_NAME));
+    }
+
+    /**
+     * Changes the version of the pack list of a repository, so that other processes know to re-read it. Must be
+     * called after the pack descriptions themselves have been updated.
+     */
+    public Observable<Void> bumpPackListVersion(String repositoryName) {
+        return configuration.getDynamoClient().updateItem(
+                configuration.getPackDescriptionsTableName(),
+                new UpdateItemSpec()
+                        .withPrimaryKey(versionKey(repositoryName))
+                        .withUpdateExpression("ADD #version :one")
+                        .withNameMap(new NameMap().with("#version", VERSION_ATTRIBUTE))
+                        .withValueMap(new ValueMap().withLong(":one", 1)),
+                tableCreator);
+    }
+
+    public Observable<Long> getPackListVersion(String repositoryName) {
+        return configuration.getDynamoClient().getItem(
+                configuration.getPackDescriptionsTableName(),
+                new GetItemSpec()
+                        .withPrimaryKey(versionKey(repositoryName))
+                        .withConsistentRead(true))
+                .map(item -> item == null || !item.isPresent(VERSION_ATTRIBUTE) ? 0L : item.getLong(VERSION_ATTRIBUTE));
+    }
+
+    /**
+     * Returns the packs of a repository. The list is cached, and is only read again when the version of the pack
+     * list has changed or the cached list has become too old.
+     */
     public Observable<DfsPackDescription> getAllPackDescriptions(AmazonRepository repository) {
+        String repositoryName = repository.getRepositoryName();
+        return getPackListVersion(repositoryName)
+                .flatMap(version -> {
+                    PackList packList = packLists.get(repositoryName);
+                    if (packList != null && packList.version == version &&
+                            System.currentTimeMillis() - packList.readTime < configuration.getMaximumPackListCacheAge()) {
+                        logger.debug("Packs list of repository {} is unchanged at version {}", repositoryName, version);
+                        return Observable.from(packList.packs);
+                    }
+
+                    long readTime = System.currentTimeMillis();
+                    Map<String, byte[]> inlineFiles = new HashMap<>();
+                    return queryAllPackDescriptions(repository, inlineFiles)
+                            .toList()
+                            .doOnNext(packs -> {
+                                packLists.put(repositoryName, new PackList(version, readTime, packs, inlineFiles));
+
+                                // Inlined files that were written by this process are now served from the pack list
+                                for (String fileName : inlineFiles.keySet()) {
+                                    configuration.getPackRepository().removePendingInlineFile(repositoryName, fileName);
+                                }
+                            })
+                            .flatMap(packs -> Observable.from(packs));
+                })
+                .map(desc -> copyOf(desc, repository.getDescription()));
+    }
+
+    /**
+     * Returns the contents of a pack file that is stored on its pack description, or null if the file isn't inlined
+     * in the last pack list read of the repository.
+     */
+    public byte[] getInlineFile(String repositoryName, String fileName) {
+        PackList packList = packLists.get(repositoryName);
+        return packList == null ? null : packList.inlineFiles.get(fileName);
+    }
+
+    private Observable<DfsPackDescription> queryAllPackDescriptions(
+            AmazonRepository repository,
+            Map<String, byte[]> inlineFiles) {
         return configuration.getDynamoClient().getAllItems(
                 configuration.getPackDescriptionsTableName(),
                 new QuerySpec()
                         .withHashKey(REPOSITORY_NAME_ATTRIBUTE, repository.getRepositoryName())
-                        .withScanIndexForward(true))
+                        .withScanIndexForward(true)
+                        .withConsistentRead(true))
+                .filter(item -> !VERSION_ITEM_NAME.equals(item.getString(NAME_ATTRIBUTE)))
                 .map(item -> {
-                    String name = item.getString(NAME_ATTRIBUTE);
-                    String description = item.getString(DESCRIPTION_ATTRIBUTE);
-
-                    return fromJson(description, new DfsPackDescription(repository.getDescription(), name));
+                    DfsPackDescription desc = new DfsPackDescription(
+                            repository.getDescription(), item.getString(NAME_ATTRIBUTE));
+
+                    // Packs written before the binary encoding was introduced only have the JSON description
+                    if (item.isPresent(ENCODED_DESCRIPTION_ATTRIBUTE)) {
+                        PackDescriptionCodec.decode(item.getBinary(ENCODED_DESCRIPTION_ATTRIBUTE), desc);
+                    } else {
+                        PackDescriptionCodec.fromJson(item.getString(DESCRIPTION_ATTRIBUTE), desc);
+                    }
+
+                    for (PackExt ext : PackExt.values()) {
+                        String attribute = INLINE_FILE_ATTRIBUTE_PREFIX + ext.getExtension();
+                        if (desc.hasFileExt(ext) && item.isPresent(attribute)) {
+                            inlineFiles.put(desc.getFileName(ext), item.getBinary(attribute));
+                        }
+                    }
+
+                    return desc;
                 })
                 .doOnCompleted(() ->
                         logger.debug("Retrieved packs list for repository {}", repository.getRepositoryName()));
     }
 
+    private static class PackList {
+        private final long version;
+        private final long readTime;
+        private final List<DfsPackDescription> packs;
+        private final Map<String, byte[]> inlineFiles;
+
+        public PackList(long version, long readTime, List<DfsPackDescription> packs, Map<String, byte[]> inlineFiles) {
+            this.version = version;
+            this.readTime = readTime;
+            this.packs = packs;
+            this.inlineFiles = inlineFiles.isEmpty() ? Collections.emptyMap() : inlineFiles;
+        }
+    }
+
     private enum Operation {
         ADDITION,
         REMOVAL
@@ -46,49 +46,240 @@
  */
 package org.chodavarapu.jgitaws.repositories;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.model.*;
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.aws.Backoff;
+import org.chodavarapu.jgitaws.aws.ExecutionModel;
+import org.chodavarapu.jgitaws.aws.LocalPackCache;
+import org.chodavarapu.jgitaws.jgit.ByteArrayReadableChannel;
+import org.chodavarapu.jgitaws.jgit.ChunkedReadBackBuffer;
+import org.chodavarapu.jgitaws.jgit.MappedFileReadableChannel;
 import org.chodavarapu.jgitaws.jgit.PipedDfsOutputStream;
+import org.chodavarapu.jgitaws.jgit.S3MultipartDfsOutputStream;
 import org.chodavarapu.jgitaws.jgit.S3ObjectReadableChannel;
 import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
 import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
 import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
 import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.Observable;
-import rx.schedulers.Schedulers;
 import rx.util.async.Async;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class PackRepository {
     private static final Logger logger = LoggerFactory.getLogger(PackRepository.class);
+
+    private static final int MAXIMUM_KEYS_PER_DELETE = 1000;
+    private static final long BASE_DELETE_BACKOFF_MILLIS = 100;
+    private static final long MAXIMUM_DELETE_BACKOFF_MILLIS = 5000;
+
+    /**
+     * All the inlined files of a pack are stored on one DynamoDB item, which can't be larger than 400 KB, so no file
+     * larger than this is inlined whatever the configured size.
+     */
+    public static final int MAXIMUM_INLINE_PACK_FILE_SIZE = 96 * 1024;
+
+    /**
+     * The number of pack files whose key layout is remembered; the key of a file that was forgotten is looked up
+     * again the next time it is opened.
+     */
+    private static final int MAXIMUM_RESOLVED_KEYS = 100000;
+
     private final JGitAwsConfiguration configuration;
+    private final ConcurrentHashMap<String, byte[]> pendingInlineFiles;
+    private final Map<String, String> resolvedKeys;
 
     public PackRepository(JGitAwsConfiguration configuration) {
         this.configuration = configuration;
+        this.pendingInlineFiles = new ConcurrentHashMap<>();
+        this.resolvedKeys = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAXIMUM_RESOLVED_KEYS;
+            }
+        });
     }
 
     private String objectName(String repositoryName, String packName) {
         return new StringBuilder(repositoryName).append('/').append(packName).toString();
     }
 
+    /**
+     * Returns the key of a pack file in the hashed layout, in which the key starts with a prefix derived from a hash
+     * of the file name so that the files of a repository are spread over the whole key space of the bucket.
+     */
+    private String hashedKey(String objectName) {
+        MessageDigest digest = Constants.newMessageDigest();
+        String hash = ObjectId.fromRaw(digest.digest(Constants.encode(objectName))).name();
+
+        return new StringBuilder(hash.substring(0, configuration.getPackKeyHashPrefixLength()))
+                .append('/')
+                .append(objectName)
+                .toString();
+    }
+
+    /**
+     * Whether pack files may be stored with either key layout, which is only the case when hashed keys are or were
+     * enabled. Otherwise every file is stored under its object name.
+     */
+    private boolean hasMixedKeyLayouts() {
+        return configuration.isHashedPackKeysEnabled() || configuration.isHashedPackKeysPreviouslyEnabled();
+    }
+
+    private String keyToWrite(String objectName) {
+        String key = configuration.isHashedPackKeysEnabled() ? hashedKey(objectName) : objectName;
+        if (hasMixedKeyLayouts()) {
+            resolvedKeys.put(objectName, key);
+        }
+        return key;
+    }
+
+    /**
+     * Opens a channel on a pack file in S3. When files may have been written with either key layout and the key of
+     * the file isn't known yet, the layout that is currently configured is checked first, and then the other one.
+     * The size found while checking is handed to the channel, so that finding the key doesn't cost an extra request.
+     */
+    private S3ObjectReadableChannel openChannel(String objectName) {
+        if (!hasMixedKeyLayouts()) {
+            return new S3ObjectReadableChannel(configuration, objectName);
+        }
+
+        String key = resolvedKeys.get(objectName);
+        if (key != null) {
+            return new S3ObjectReadableChannel(configuration, key);
+        }
+
+        String hashedKey = hashedKey(objectName);
+        String preferredKey = configuration.isHashedPackKeysEnabled() ? hashedKey : objectName;
+        String otherKey = configuration.isHashedPackKeysEnabled() ? objectName : hashedKey;
+
+        for (String candidateKey : new String[] { preferredKey, otherKey }) {
+            long size = contentLength(candidateKey);
+            if (size >= 0) {
+                logger.debug("Pack file {} is stored under key {}", objectName, candidateKey);
+                resolvedKeys.put(objectName, candidateKey);
+                return new S3ObjectReadableChannel(configuration, candidateKey, size);
+            }
+        }
+
+        return new S3ObjectReadableChannel(configuration, preferredKey);
+    }
+
+    private long contentLength(String key) {
+        try {
+            return configuration.getS3Client()
+                    .getObjectMetadata(configuration.getPacksBucketName(), key)
+                    .getContentLength();
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the files of the given packs. Keys are deleted in batches of at most {@value #MAXIMUM_KEYS_PER_DELETE}
+     * (the most a single S3 request accepts), with up to
+     * {@link JGitAwsConfiguration#getMaximumConcurrentPackDeletes()} batches in flight. Keys that S3 fails to delete
+     * are retried on their own, and any that still can't be deleted are reported through the returned observable.
+     */
     public Observable<Void> deletePacks(Collection<DfsPackDescription> packs) {
-        List<String> objectNames = getObjectNames(packs);
+        List<String> objectNames = new ArrayList<>();
+        for (String objectName : getObjectNames(packs)) {
+            configuration.getPackResidency().remove(objectName);
+            pendingInlineFiles.remove(objectName);
+
+            // Without knowing which layout a file was written with, the keys of both layouts are deleted
+            String key = resolvedKeys.remove(objectName);
+            if (key != null) {
+                objectNames.add(key);
+            } else if (!hasMixedKeyLayouts()) {
+                objectNames.add(objectName);
+            } else {
+                objectNames.add(objectName);
+                objectNames.add(hashedKey(objectName));
+            }
+        }
+
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < objectNames.size(); i += MAXIMUM_KEYS_PER_DELETE) {
+            batches.add(objectNames.subList(i, Math.min(objectNames.size(), i + MAXIMUM_KEYS_PER_DELETE)));
+        }
+
+        logger.debug("Deleting {} pack files in {} batches", objectNames.size(), batches.size());
+
+        return Observable.from(batches)
+                .flatMap(batch -> Async.fromCallable(() -> deleteObjects(batch),
+                        configuration.getExecutionModel().getS3WritePool().getScheduler()),
+                        configuration.getMaximumConcurrentPackDeletes())
+                .flatMap(failedKeys -> Observable.from(failedKeys))
+                .toList()
+                .map(failedKeys -> {
+                    if (!failedKeys.isEmpty()) {
+                        logger.warn("Unable to delete pack files {}", failedKeys);
+                        throw new AmazonClientException("Unable to delete " + failedKeys.size() + " of " +
+                                objectNames.size() + " pack files");
+                    }
+                    return null;
+                });
+    }
 
-        return Async.fromCallable(() -> configuration.getS3Client().deleteObjects(
-                new DeleteObjectsRequest(configuration.getPacksBucketName())
-                        .withKeys(objectNames.toArray(new String[objectNames.size()]))))
-                .map(r -> null);
+    private List<String> deleteObjects(List<String> keys) {
+        List<String> remainingKeys = keys;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                configuration.getS3Client().deleteObjects(
+                        new DeleteObjectsRequest(configuration.getPacksBucketName())
+                                .withKeys(remainingKeys.toArray(new String[remainingKeys.size()]))
+                                .withQuiet(true));
+                return Collections.emptyList();
+            } catch (MultiObjectDeleteException e) {
+                remainingKeys = new ArrayList<>(e.getErrors().size());
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    logger.debug("Unable to delete pack file {}: {}", error.getKey(), error.getCode());
+                    remainingKeys.add(error.getKey());
+                }
+
+                if (attempt >= configuration.getMaximumPackDeleteAttempts()) {
+                    return remainingKeys;
+                }
+            } catch (AmazonClientException e) {
+                if (attempt >= configuration.getMaximumPackDeleteAttempts()) {
+                    logger.debug("Unable to delete batch of {} pack files", remainingKeys.size(), e);
+                    return remainingKeys;
+                }
+            }
+
+            logger.debug("Retrying deletion of {} pack files (attempt {})", remainingKeys.size(), attempt);
+            try {
+                Backoff.sleep(BASE_DELETE_BACKOFF_MILLIS, MAXIMUM_DELETE_BACKOFF_MILLIS, attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return remainingKeys;
+            }
+        }
     }
 
     private List<String> getObjectNames(Collection<DfsPackDescription> packs) {
@@ -107,44 +298,182 @@ public class PackRepository {
     }
 
     public ReadableChannel readPack(String repositoryName, String packName) throws IOException {
-        return new S3ObjectReadableChannel(configuration, objectName(repositoryName, packName));
+        String objectName = objectName(repositoryName, packName);
+
+        byte[] inlineFile = pendingInlineFiles.get(objectName);
+        if (inlineFile == null) {
+            inlineFile = configuration.getPackDescriptionRepository().getInlineFile(repositoryName, packName);
+        }
+        if (inlineFile != null) {
+            logger.debug("Reading pack file {} from its pack description", objectName);
+            return new ByteArrayReadableChannel(inlineFile, configuration.getStreamingBlockSize());
+        }
+
+        ReadableChannel residentChannel = configuration.getPackResidency().open(objectName);
+        if (residentChannel != null) {
+            logger.debug("Reading pack file {} from resident pack files", objectName);
+            return residentChannel;
+        }
+
+        LocalPackCache localPackCache = configuration.getLocalPackCache();
+        if (localPackCache != null) {
+            ReadableChannel cachedChannel = localPackCache.open(objectName,
+                    file -> new MappedFileReadableChannel(file, configuration.getStreamingBlockSize()));
+            if (cachedChannel != null) {
+                logger.debug("Reading pack file {} from local pack cache", objectName);
+                return cachedChannel;
+            }
+
+            S3ObjectReadableChannel channel = openChannel(objectName);
+            cacheLocally(localPackCache, objectName, channel.getObjectName(), channel.size());
+            return channel;
+        }
+
+        return openChannel(objectName);
+    }
+
+    private void cacheLocally(LocalPackCache localPackCache, String objectName, String key, long size) {
+        ExecutionModel.Pool pool = configuration.getExecutionModel().getS3ReadPool();
+        if (pool.isSaturated()) {
+            logger.debug("Not storing pack file {} in local pack cache, S3 read pool is busy", objectName);
+            return;
+        }
+
+        Async.fromAction(() -> {
+            try {
+                localPackCache.load(objectName, size, () -> configuration.getS3Client()
+                        .getObject(configuration.getPacksBucketName(), key)
+                        .getObjectContent());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, null, pool.getScheduler())
+                .subscribe(
+                        v -> {},
+                        t -> logger.debug("Unable to store pack file {} in local pack cache", objectName, t));
+    }
+
+    private int maximumInlineFileSize() {
+        return configuration.isPackInliningEnabled() ?
+                Math.min(configuration.getMaximumInlinePackFileSize(), MAXIMUM_INLINE_PACK_FILE_SIZE) : -1;
+    }
+
+    /**
+     * Keeps the contents of a just written file in memory instead of uploading it to S3, if it is small enough to be
+     * inlined. Inlined files are stored on their pack description when the pack is committed, and are served from
+     * here until the pack list is read again.
+     */
+    public boolean inlineFile(String objectName, ChunkedReadBackBuffer buffer) throws IOException {
+        if (buffer.length() > maximumInlineFileSize()) {
+            return false;
+        }
+
+        ByteBuffer contents = ByteBuffer.allocate((int) buffer.length());
+        while (contents.hasRemaining()) {
+            if (buffer.read(contents.position(), contents) < 0) {
+                break;
+            }
+        }
+
+        pendingInlineFiles.put(objectName, contents.array());
+        logger.debug("Inlining pack file {} ({} bytes) in its pack description", objectName, buffer.length());
+        return true;
+    }
+
+    public byte[] getPendingInlineFile(String repositoryName, String packName) {
+        return pendingInlineFiles.get(objectName(repositoryName, packName));
+    }
+
+    public void removePendingInlineFile(String repositoryName, String packName) {
+        pendingInlineFiles.remove(objectName(repositoryName, packName));
+    }
+
+    /**
+     * Drops the inlined files of packs that won't be committed. Every file extension is checked, as a file may have
+     * been written before its extension was added to the pack description.
+     */
+    public void removePendingInlineFiles(Collection<DfsPackDescription> packs) {
+        if (packs == null) {
+            return;
+        }
+
+        for (DfsPackDescription pack : packs) {
+            for (PackExt ext : PackExt.values()) {
+                removePendingInlineFile(pack.getRepositoryDescription().getRepositoryName(), pack.getFileName(ext));
+            }
+        }
     }
 
-    public DfsOutputStream savePack(String repositoryName, String packName, long length) throws IOException {
-        PipedInputStream pipedInputStream = new PipedInputStream(configuration.getStreamingBlockSize());
+    public <T> T withPacksBucket(Supplier<T> operation) {
+        try {
+            return operation.get();
+        } catch (AmazonServiceException e) {
+            if ("NoSuchBucket".equals(e.getErrorCode()) ||
+                    "InvalidBucketName".equals(e.getErrorCode()) ||
+                    "InvalidBucketState".equals(e.getErrorCode())) {
+                logger.debug("S3 packs bucket does not exist yet, creating it");
+                configuration.getS3Client().createBucket(new CreateBucketRequest(configuration.getPacksBucketName()));
+                configuration.getS3Client().setBucketVersioningConfiguration(
+                        new SetBucketVersioningConfigurationRequest(
+                                configuration.getPacksBucketName(),
+                                new BucketVersioningConfiguration(BucketVersioningConfiguration.OFF)));
 
-        ObjectMetadata metaData = new ObjectMetadata();
-        metaData.setContentLength(length);
+                logger.debug("Created bucket, retrying operation");
+                return operation.get();
+            } else {
+                throw e;
+            }
+        }
+    }
 
+    /**
+     * Opens a stream to write a pack file to. If an upload tracker is given, closing the stream doesn't wait for the
+     * file to be uploaded; the tracker is given an observable that completes once it has been.
+     */
+    public DfsOutputStream savePack(
+            String repositoryName,
+            String packName,
+            long length,
+            Consumer<Observable<Void>> uploadTracker) throws IOException {
         String objectName = objectName(repositoryName, packName);
+        String key = keyToWrite(objectName);
 
-        Async.fromAction(() -> {
-            logger.debug("Attempting to save pack {} to S3 bucket", objectName);
+        if (configuration.isMultipartUploadEnabled()) {
+            return new S3MultipartDfsOutputStream(configuration, objectName, key, uploadTracker);
+        }
+
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(
+                configuration.getStreamingBlockSize(),
+                configuration.getReadBackBufferSpillThreshold());
+
+        Observable<Void> put = Async.fromAction(() -> {
+            ObjectMetadata metaData = new ObjectMetadata();
+            metaData.setContentLength(length > 0 ? length : buffer.length());
+
+            logger.debug("Attempting to save pack {} to S3 bucket as {}", objectName, key);
+            withPacksBucket(() -> configuration.getS3Client().putObject(
+                    configuration.getPacksBucketName(), key, buffer.newInputStream(), metaData));
+        }, null, configuration.getExecutionModel().getS3WritePool().getScheduler());
+
+        // A file that may be small enough to inline isn't streamed, so that its size is known before deciding. When
+        // the length isn't known up front (it is zero), the decision is left until the file is closed.
+        boolean lengthKnown = length > 0;
+        boolean inlinable = maximumInlineFileSize() >= 0 && (!lengthKnown || length <= maximumInlineFileSize());
+        Observable<Void> upload = !inlinable ? put : Observable.defer(() -> {
             try {
-                configuration.getS3Client().putObject(
-                        configuration.getPacksBucketName(), objectName, pipedInputStream, metaData);
-            } catch (AmazonServiceException e) {
-                if ("InvalidBucketName".equals(e.getErrorCode()) || "InvalidBucketState".equals(e.getErrorCode())) {
-                    logger.debug("S3 packs bucket does not exist yet, creating it");
-                    configuration.getS3Client().createBucket(new CreateBucketRequest(configuration.getPacksBucketName()));
-                    configuration.getS3Client().setBucketVersioningConfiguration(
-                            new SetBucketVersioningConfigurationRequest(
-                                    configuration.getPacksBucketName(),
-                                    new BucketVersioningConfiguration(BucketVersioningConfiguration.OFF)));
-
-                    logger.debug("Created bucket, saving pack {}", objectName);
-                    configuration.getS3Client().putObject(
-                            configuration.getPacksBucketName(), objectName, pipedInputStream, metaData);
-                } else {
-                    throw e;
-                }
+                return inlineFile(objectName, buffer) ? Observable.<Void>just(null) : put;
+            } catch (IOException e) {
+                return Observable.error(e);
             }
-        }, null, Schedulers.io());
+        });
 
         return new PipedDfsOutputStream(
-                pipedInputStream,
+                buffer,
+                upload,
+                configuration.getPackResidency(),
+                uploadTracker,
+                lengthKnown && !inlinable,
                 objectName,
-                (int) length,
                 configuration.getStreamingBlockSize());
     }
 }
@@ -46,14 +46,20 @@
  */
 package org.chodavarapu.jgitaws.repositories;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
 import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
 import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.*;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import org.chodavarapu.jgitaws.JGitAwsConfiguration;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
@@ -62,54 +68,186 @@ import org.eclipse.jgit.lib.SymbolicRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.Observable;
+import rx.util.async.Async;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
+ * Stores refs in DynamoDB, one item per ref.
+ * <p>
+ * When ref snapshots are enabled, reading all refs doesn't page through every ref item. Instead, a compressed
+ * snapshot of all refs is kept in S3 (see {@link RefSnapshotCodec}) and the version item of the repository points
+ * at the current one. Every ref write marks its item as pending, and deletes leave a tombstone item behind, so the
+ * refs changed since the snapshot was taken (the overlay) can be read through a sparse local secondary index. Once the
+ * overlay grows past a threshold, it is folded into a new snapshot, which is published by conditionally updating the
+ * pointer; only then are the folded items marked as no longer pending. Snapshots are stored in the packs bucket as
+ * {@code <repository>/refs/<uuid>.snapshot} objects. Writes made while snapshots are disabled don't mark their items
+ * as pending, so they remove the pointer instead, and the next snapshot is taken from all ref items again. The
+ * pending index is a local secondary index, which DynamoDB can only create along with the table; when snapshots are
+ * enabled for a refs table that was created without it, refs are read and written as if snapshots were disabled.
+ * <p>
+ * When {@link JGitAwsConfiguration#getRefShardCount()} is more than one, the ref items of a repository are spread over
+ * that many hash keys of the form {@code <repository>#<shard>}, with the shard derived from the ref name, so that ref
+ * writes to a busy repository don't all land on one partition. Reading all refs then queries the shards in parallel
+ * and merges the results back into name order. The version item of a repository is always under the repository name
+ * itself, but the version counter is split over the shards too (see {@link #getRefsVersion(String)}). The shard count
+ * decides where refs are found, so it can't be changed once refs have been written: it is stored on the version item
+ * with the first ref write, and reading or writing the refs of a repository with another shard count fails.
+ *
  * @author Ravi Chodavarapu (rchodava@gmail.com)
  */
 public class RefRepository {
     private static final Logger logger = LoggerFactory.getLogger(RefRepository.class);
 
+    private static final int MAXIMUM_SNAPSHOT_READ_ATTEMPTS = 3;
+    private static final int MAXIMUM_CONCURRENT_PENDING_UPDATES = 8;
+
+    private static final String IS_DELETED_ATTRIBUTE = "IsDeleted";
     private static final String IS_PEELED_ATTRIBUTE = "IsPeeled";
     private static final String IS_SYMBOLIC_ATTRIBUTE = "IsSymbolic";
     private static final String NAME_ATTRIBUTE = "Name";
     private static final String PEELED_TARGET_ATTRIBUTE = "PeeledTarget";
+    private static final String PENDING_ATTRIBUTE = "Pending";
     private static final String REPOSITORY_NAME_ATTRIBUTE = "RepositoryName";
+    private static final String SHARD_COUNT_ATTRIBUTE = "ShardCount";
+    private static final String SNAPSHOT_ATTRIBUTE = "Snapshot";
     private static final String TARGET_ATTRIBUTE = "Target";
+    private static final String VERSION_ATTRIBUTE = "Version";
+    private static final String VERSION_ITEM_NAME = ".version";
+    private static final String PENDING_INDEX_NAME = "PendingIndex";
     private static final String COMPARE_AND_PUT_EXPRESSION = "SET " +
             TARGET_ATTRIBUTE + " = :target, " +
             IS_PEELED_ATTRIBUTE + " = :isPeeled, " +
             IS_SYMBOLIC_ATTRIBUTE + " = :isSymbolic";
+    private static final String NOT_DELETED_CONDITION = "attribute_not_exists(" + IS_DELETED_ATTRIBUTE + ")";
 
     private final JGitAwsConfiguration configuration;
     private final Supplier<CreateTableRequest> tableCreator;
+    private final ConcurrentHashMap<String, Snapshot> snapshots;
+    private final ConcurrentHashMap<String, ScannedRefs> scannedRefs;
+    private final Set<String> compactionsInProgress;
+    private final Set<String> checkedShardCounts;
+    private volatile Boolean pendingIndexAvailable;
 
     public RefRepository(JGitAwsConfiguration configuration) {
         this.configuration = configuration;
-        this.tableCreator = () ->
-                new CreateTableRequest()
-                        .withTableName(configuration.getRefsTableName())
-                        .withKeySchema(
-                                new KeySchemaElement()
-                                        .withAttributeName(REPOSITORY_NAME_ATTRIBUTE)
-                                        .withKeyType(KeyType.HASH),
-                                new KeySchemaElement()
-                                        .withAttributeName(NAME_ATTRIBUTE)
-                                        .withKeyType(KeyType.RANGE))
-                        .withAttributeDefinitions(
-                                new AttributeDefinition()
-                                        .withAttributeName(REPOSITORY_NAME_ATTRIBUTE)
-                                        .withAttributeType(ScalarAttributeType.S),
-                                new AttributeDefinition()
-                                        .withAttributeName(NAME_ATTRIBUTE)
-                                        .withAttributeType(ScalarAttributeType.S))
-                        .withProvisionedThroughput(new ProvisionedThroughput(
-                                configuration.getInitialRefsTableReadThroughput(),
-                                configuration.getInitialRefsTableWriteThroughput()));
+        this.snapshots = new ConcurrentHashMap<>();
+        this.scannedRefs = new ConcurrentHashMap<>();
+        this.compactionsInProgress = ConcurrentHashMap.newKeySet();
+        this.checkedShardCounts = ConcurrentHashMap.newKeySet();
+        this.tableCreator = () -> {
+            CreateTableRequest request = new CreateTableRequest()
+                    .withTableName(configuration.getRefsTableName())
+                    .withKeySchema(
+                            new KeySchemaElement()
+                                    .withAttributeName(REPOSITORY_NAME_ATTRIBUTE)
+                                    .withKeyType(KeyType.HASH),
+                            new KeySchemaElement()
+                                    .withAttributeName(NAME_ATTRIBUTE)
+                                    .withKeyType(KeyType.RANGE))
+                    .withAttributeDefinitions(
+                            new AttributeDefinition()
+                                    .withAttributeName(REPOSITORY_NAME_ATTRIBUTE)
+                                    .withAttributeType(ScalarAttributeType.S),
+                            new AttributeDefinition()
+                                    .withAttributeName(NAME_ATTRIBUTE)
+                                    .withAttributeType(ScalarAttributeType.S))
+                    .withProvisionedThroughput(new ProvisionedThroughput(
+                            configuration.getInitialRefsTableReadThroughput(),
+                            configuration.getInitialRefsTableWriteThroughput()));
+
+            if (configuration.isRefSnapshotsEnabled()) {
+                request.withAttributeDefinitions(
+                        new AttributeDefinition()
+                                .withAttributeName(PENDING_ATTRIBUTE)
+                                .withAttributeType(ScalarAttributeType.S))
+                        .withLocalSecondaryIndexes(new LocalSecondaryIndex()
+                                .withIndexName(PENDING_INDEX_NAME)
+                                .withKeySchema(
+                                        new KeySchemaElement()
+                                                .withAttributeName(REPOSITORY_NAME_ATTRIBUTE)
+                                                .withKeyType(KeyType.HASH),
+                                        new KeySchemaElement()
+                                                .withAttributeName(PENDING_ATTRIBUTE)
+                                                .withKeyType(KeyType.RANGE))
+                                .withProjection(new Projection().withProjectionType(ProjectionType.ALL)));
+            }
+
+            return request;
+        };
+    }
+
+    /**
+     * Tells whether ref snapshots are in use, which needs them to be enabled and the refs table to have the pending
+     * index. The table is only described once; a table that doesn't exist yet will be created with the index.
+     */
+    private boolean isUsingSnapshots() {
+        if (!configuration.isRefSnapshotsEnabled()) {
+            return false;
+        }
+
+        Boolean available = pendingIndexAvailable;
+        if (available == null) {
+            TableDescription table = configuration.getDynamoClient()
+                    .describeTable(configuration.getRefsTableName())
+                    .toBlocking()
+                    .lastOrDefault(null);
+            if (table == null) {
+                return true;
+            }
+
+            available = table.getLocalSecondaryIndexes() != null && table.getLocalSecondaryIndexes().stream()
+                    .anyMatch(index -> PENDING_INDEX_NAME.equals(index.getIndexName()));
+            if (!available) {
+                logger.error("Ref snapshots are enabled but refs table {} has no {} index, which can only be " +
+                                "created along with the table; refs are read without snapshots",
+                        configuration.getRefsTableName(), PENDING_INDEX_NAME);
+            }
+            pendingIndexAvailable = available;
+        }
+
+        return available;
+    }
+
+    private static String shardKey(String repositoryName, int shard) {
+        return new StringBuilder(repositoryName).append('#').append(shard).toString();
+    }
+
+    private PrimaryKey refKey(String repositoryName, String refName) {
+        int shardCount = configuration.getRefShardCount();
+        String hashKey = shardCount > 1 ?
+                shardKey(repositoryName, Math.floorMod(refName.hashCode(), shardCount)) :
+                repositoryName;
+
+        return new PrimaryKey(
+                new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, hashKey),
+                new KeyAttribute(NAME_ATTRIBUTE, refName));
+    }
+
+    private static String newPendingToken() {
+        return UUID.randomUUID().toString();
     }
 
     public Observable<Boolean> compareAndPut(String repositoryName, Ref oldRef, Ref newRef) {
+        return compareAndPut(repositoryName, oldRef, newRef, true);
+    }
+
+    public Observable<Boolean> compareAndPut(String repositoryName, Ref oldRef, Ref newRef, boolean bumpVersion) {
         boolean isSymbolic = newRef.isSymbolic();
         boolean isPeeled = newRef.isPeeled();
         String target = newRef.isSymbolic() ? newRef.getTarget().getName() : newRef.getObjectId().name();
@@ -117,11 +255,10 @@ public class RefRepository {
         logger.debug("Saving ref {} -> {} in repository {}", newRef.getName(), target, repositoryName);
 
         UpdateItemSpec updateSpec = new UpdateItemSpec()
-                .withPrimaryKey(new PrimaryKey(
-                        new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, repositoryName),
-                        new KeyAttribute(NAME_ATTRIBUTE, newRef.getName())));
+                .withPrimaryKey(refKey(repositoryName, newRef.getName()));
 
         StringBuilder updateExpression = new StringBuilder(COMPARE_AND_PUT_EXPRESSION);
+        NameMap nameMap = new NameMap();
         ValueMap valueMap = new ValueMap()
                 .withString(":target", target)
                 .withBoolean(":isSymbolic", isSymbolic)
@@ -134,71 +271,663 @@ public class RefRepository {
             valueMap = valueMap.withString(":peeledTarget", newRef.getPeeledObjectId().name());
         }
 
+        if (isUsingSnapshots()) {
+            updateExpression.append(", #pending = :pending");
+            nameMap.with("#pending", PENDING_ATTRIBUTE);
+            valueMap = valueMap.withString(":pending", newPendingToken());
+        }
+
+        updateExpression.append(" REMOVE ");
+        updateExpression.append(IS_DELETED_ATTRIBUTE);
+
         if (oldRef != null && oldRef.getStorage() != Ref.Storage.NEW) {
             String expected = oldRef.isSymbolic() ? oldRef.getTarget().getName() : oldRef.getObjectId().name();
-            updateSpec = updateSpec.withConditionExpression("#target = :expected")
-                    .withNameMap(new NameMap().with("#target", TARGET_ATTRIBUTE));
+            updateSpec = updateSpec.withConditionExpression("#target = :expected AND " + NOT_DELETED_CONDITION);
+            nameMap.with("#target", TARGET_ATTRIBUTE);
             valueMap = valueMap.withString(":expected", expected);
         }
 
         updateSpec = updateSpec.withUpdateExpression(updateExpression.toString()).withValueMap(valueMap);
+        if (!nameMap.isEmpty()) {
+            updateSpec = updateSpec.withNameMap(nameMap);
+        }
 
-        return configuration.getDynamoClient().updateItem(configuration.getRefsTableName(), updateSpec, tableCreator)
+        Observable<Boolean> save = configuration.getDynamoClient()
+                .updateItem(configuration.getRefsTableName(), updateSpec, tableCreator)
                 .map(v -> true)
                 .doOnNext(v -> logger.debug("Saved ref {} in repository {}", newRef.getName(), repositoryName))
-                .onErrorReturn(t -> false);
+                .onErrorReturn(t -> false)
+                .flatMap(saved -> saved && bumpVersion ?
+                        bumpRefsVersion(repositoryName, newRef.getName()) : Observable.just(saved));
+        return withShardCountChecked(repositoryName, true, save);
     }
 
     public Observable<Boolean> compareAndRemove(String repositoryName, Ref ref) {
+        return compareAndRemove(repositoryName, ref, true);
+    }
+
+    public Observable<Boolean> compareAndRemove(String repositoryName, Ref ref, boolean bumpVersion) {
         String expected = ref.isSymbolic() ? ref.getTarget().getName() : ref.getObjectId().name();
         logger.debug("Removing ref {} -> {} from repository {}", ref.getName(), expected, repositoryName);
 
-        return configuration.getDynamoClient().deleteItem(
-                configuration.getRefsTableName(),
-                new DeleteItemSpec()
-                        .withPrimaryKey(new PrimaryKey(
-                                new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, repositoryName),
-                                new KeyAttribute(NAME_ATTRIBUTE, ref.getName())))
-                        .withConditionExpression("#target = :expected")
-                        .withNameMap(new NameMap()
-                                .with("#target", TARGET_ATTRIBUTE))
-                        .withValueMap(new ValueMap()
-                                .with(":expected", expected)))
+        Observable<Void> removal;
+        if (isUsingSnapshots()) {
+            removal = configuration.getDynamoClient().updateItem(
+                    configuration.getRefsTableName(),
+                    new UpdateItemSpec()
+                            .withPrimaryKey(refKey(repositoryName, ref.getName()))
+                            .withUpdateExpression("SET " + IS_DELETED_ATTRIBUTE + " = :isDeleted, #pending = :pending")
+                            .withConditionExpression("#target = :expected AND " + NOT_DELETED_CONDITION)
+                            .withNameMap(new NameMap()
+                                    .with("#target", TARGET_ATTRIBUTE)
+                                    .with("#pending", PENDING_ATTRIBUTE))
+                            .withValueMap(new ValueMap()
+                                    .withBoolean(":isDeleted", true)
+                                    .withString(":pending", newPendingToken())
+                                    .withString(":expected", expected)),
+                    tableCreator);
+        } else {
+            removal = configuration.getDynamoClient().deleteItem(
+                    configuration.getRefsTableName(),
+                    new DeleteItemSpec()
+                            .withPrimaryKey(refKey(repositoryName, ref.getName()))
+                            .withConditionExpression("#target = :expected AND " + NOT_DELETED_CONDITION)
+                            .withNameMap(new NameMap()
+                                    .with("#target", TARGET_ATTRIBUTE))
+                            .withValueMap(new ValueMap()
+                                    .with(":expected", expected)));
+        }
+
+        return withShardCountChecked(repositoryName, true, removal
                 .map(v -> true)
                 .doOnNext(v -> logger.debug("Removed ref {} -> {} from repository {}", ref.getName(), expected, repositoryName))
-                .onErrorReturn(t -> false);
+                .onErrorReturn(t -> false)
+                .flatMap(removed -> removed && bumpVersion ?
+                        bumpRefsVersion(repositoryName, ref.getName()) : Observable.just(removed)));
     }
 
-    public Observable<Ref> getAllRefsSorted(String repositoryName) {
-        return configuration.getDynamoClient().getAllItems(
+    private static PrimaryKey versionKey(String repositoryName) {
+        return new PrimaryKey(
+                new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, repositoryName),
+                new KeyAttribute(NAME_ATTRIBUTE, VERSION_ITEM_NAME));
+    }
+
+    /**
+     * Returns the key of the version counter to bump when the given ref changes. With sharded refs every shard has
+     * its own counter, so that ref writes don't all update the same item, and the version of the refs of a repository
+     * is the sum of the counters. Changes that aren't to a specific ref bump the counter of a random shard.
+     */
+    private PrimaryKey versionCounterKey(String repositoryName, String refName) {
+        int shardCount = configuration.getRefShardCount();
+        if (shardCount <= 1) {
+            return versionKey(repositoryName);
+        }
+
+        int shard = refName == null ?
+                ThreadLocalRandom.current().nextInt(shardCount) :
+                Math.floorMod(refName.hashCode(), shardCount);
+        return new PrimaryKey(
+                new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, shardKey(repositoryName, shard)),
+                new KeyAttribute(NAME_ATTRIBUTE, VERSION_ITEM_NAME));
+    }
+
+    /**
+     * Bumps the version of the refs of a repository so that other nodes drop their cached refs. Fails if the version
+     * couldn't be updated; the refs themselves have been changed by then, so callers should report the failure rather
+     * than treat the change as not made.
+     */
+    public Observable<Boolean> bumpRefsVersion(String repositoryName) {
+        return bumpRefsVersion(repositoryName, null);
+    }
+
+    private Observable<Boolean> bumpRefsVersion(String repositoryName, String refName) {
+        PrimaryKey counterKey = versionCounterKey(repositoryName, refName);
+        boolean counterOnVersionItem = configuration.getRefShardCount() <= 1;
+        boolean invalidateSnapshot = !isUsingSnapshots();
+
+        NameMap nameMap = new NameMap().with("#version", VERSION_ATTRIBUTE);
+        String updateExpression = "ADD #version :one";
+        if (invalidateSnapshot && counterOnVersionItem) {
+            updateExpression += " REMOVE #snapshot";
+            nameMap.with("#snapshot", SNAPSHOT_ATTRIBUTE);
+        }
+
+        Observable<Void> bump = configuration.getDynamoClient().updateItem(
                 configuration.getRefsTableName(),
-                new QuerySpec()
-                        .withHashKey(REPOSITORY_NAME_ATTRIBUTE, repositoryName)
-                        .withScanIndexForward(true))
-                .map(item -> {
-                    String name = item.getString(NAME_ATTRIBUTE);
-                    String target = item.getString(TARGET_ATTRIBUTE);
-                    boolean isSymbolic = item.getBoolean(IS_SYMBOLIC_ATTRIBUTE);
-                    boolean isPeeled = item.getBoolean(IS_PEELED_ATTRIBUTE);
-                    String peeledTarget = item.getString(PEELED_TARGET_ATTRIBUTE);
-
-                    if (isSymbolic) {
-                        return new SymbolicRef(name, new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, target, null));
-                    } else {
-                        if (isPeeled) {
-                            if (peeledTarget == null) {
-                                return new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name, ObjectId.fromString(target));
-                            } else {
-                                return new ObjectIdRef.PeeledTag(
-                                        Ref.Storage.PACKED,
-                                        name,
-                                        ObjectId.fromString(target),
-                                        ObjectId.fromString(peeledTarget));
-                            }
-                        } else {
-                            return new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, name, ObjectId.fromString(target));
-                        }
+                new UpdateItemSpec()
+                        .withPrimaryKey(counterKey)
+                        .withUpdateExpression(updateExpression)
+                        .withNameMap(nameMap)
+                        .withValueMap(new ValueMap().withLong(":one", 1)),
+                tableCreator);
+        if (invalidateSnapshot && !counterOnVersionItem) {
+            bump = bump.concatWith(invalidateSnapshot(repositoryName));
+        }
+
+        return bump
+                .lastOrDefault(null)
+                .map(v -> true)
+                .doOnError(t -> forgetScannedRefs(repositoryName))
+                .doOnError(t -> logger.warn(
+                        "Unable to update refs version of repository {}, other nodes may not see its ref changes " +
+                                "for up to {} ms", repositoryName, configuration.getMaximumRefCacheAge(), t));
+    }
+
+    /**
+     * Removes the snapshot pointer of a repository, as the snapshot no longer has all refs once they have been written
+     * without being marked as pending.
+     */
+    private Observable<Void> invalidateSnapshot(String repositoryName) {
+        return configuration.getDynamoClient().updateItem(
+                configuration.getRefsTableName(),
+                new UpdateItemSpec()
+                        .withPrimaryKey(versionKey(repositoryName))
+                        .withUpdateExpression("REMOVE #snapshot")
+                        .withConditionExpression("attribute_exists(#snapshot)")
+                        .withNameMap(new NameMap().with("#snapshot", SNAPSHOT_ATTRIBUTE)),
+                tableCreator)
+                .onErrorResumeNext(t -> t instanceof ConditionalCheckFailedException ?
+                        Observable.empty() : Observable.error(t));
+    }
+
+    /**
+     * Makes an operation on the refs of a repository fail if the refs were first written with another shard count, as
+     * refs in other shards wouldn't be found. Version items written before the shard count was stored only have a
+     * version counter if the refs weren't sharded. A repository is only checked until its shard count is known to
+     * match.
+     */
+    private <T> Observable<T> withShardCountChecked(
+            String repositoryName,
+            boolean recordShardCount,
+            Observable<T> operation) {
+        if (checkedShardCounts.contains(repositoryName)) {
+            return operation;
+        }
+
+        int shardCount = configuration.getRefShardCount();
+        return getVersionItem(repositoryName).flatMap(item -> {
+            Integer storedShardCount = null;
+            if (item != null && item.isPresent(SHARD_COUNT_ATTRIBUTE)) {
+                storedShardCount = item.getInt(SHARD_COUNT_ATTRIBUTE);
+            } else if (item != null && item.isPresent(VERSION_ATTRIBUTE)) {
+                storedShardCount = 1;
+            }
+
+            if (storedShardCount != null) {
+                if (storedShardCount != shardCount) {
+                    return Observable.error(shardCountMismatch(repositoryName, storedShardCount));
+                }
+                checkedShardCounts.add(repositoryName);
+                return operation;
+            }
+
+            if (!recordShardCount) {
+                return operation;
+            }
+
+            return configuration.getDynamoClient().updateItem(
+                    configuration.getRefsTableName(),
+                    new UpdateItemSpec()
+                            .withPrimaryKey(versionKey(repositoryName))
+                            .withUpdateExpression("SET #shardCount = :shardCount")
+                            .withConditionExpression(
+                                    "attribute_not_exists(#shardCount) OR #shardCount = :shardCount")
+                            .withNameMap(new NameMap().with("#shardCount", SHARD_COUNT_ATTRIBUTE))
+                            .withValueMap(new ValueMap().withInt(":shardCount", shardCount)),
+                    tableCreator)
+                    .onErrorResumeNext(t -> Observable.error(t instanceof ConditionalCheckFailedException ?
+                            shardCountMismatch(repositoryName, null) : t))
+                    .lastOrDefault(null)
+                    .flatMap(v -> {
+                        checkedShardCounts.add(repositoryName);
+                        return operation;
+                    });
+        });
+    }
+
+    private IllegalStateException shardCountMismatch(String repositoryName, Integer storedShardCount) {
+        return new IllegalStateException("Refs of repository " + repositoryName + " were written with " +
+                (storedShardCount == null ? "another shard count" : storedShardCount + " shards") +
+                ", but the ref shard count is " + configuration.getRefShardCount());
+    }
+
+    private Observable<Item> getVersionItem(String repositoryName) {
+        return configuration.getDynamoClient().getItem(
+                configuration.getRefsTableName(),
+                new GetItemSpec()
+                        .withPrimaryKey(versionKey(repositoryName))
+                        .withConsistentRead(true));
+    }
+
+    /**
+     * Returns the version of the refs of a repository, which changes every time a ref is saved or removed. The
+     * version is bumped after the ref itself has been written, so a version must always be read before the refs it
+     * is used to validate. With sharded refs, this is the sum of the version counters of the shards.
+     */
+    public Observable<Long> getRefsVersion(String repositoryName) {
+        int shardCount = configuration.getRefShardCount();
+        if (shardCount <= 1) {
+            return getVersionItem(repositoryName).map(item -> getVersion(item));
+        }
+
+        return Observable.range(0, shardCount)
+                .flatMap(shard -> configuration.getDynamoClient().getItem(
+                        configuration.getRefsTableName(),
+                        new GetItemSpec()
+                                .withPrimaryKey(new PrimaryKey(
+                                        new KeyAttribute(REPOSITORY_NAME_ATTRIBUTE, shardKey(repositoryName, shard)),
+                                        new KeyAttribute(NAME_ATTRIBUTE, VERSION_ITEM_NAME)))
+                                .withConsistentRead(true)))
+                .map(item -> getVersion(item))
+                .reduce(0L, (sum, version) -> sum + version);
+    }
+
+    private static long getVersion(Item item) {
+        return item == null || !item.isPresent(VERSION_ATTRIBUTE) ? 0L : item.getLong(VERSION_ATTRIBUTE);
+    }
+
+    private static Ref toRef(Item item) {
+        String name = item.getString(NAME_ATTRIBUTE);
+        String target = item.getString(TARGET_ATTRIBUTE);
+        boolean isSymbolic = item.getBoolean(IS_SYMBOLIC_ATTRIBUTE);
+        boolean isPeeled = item.getBoolean(IS_PEELED_ATTRIBUTE);
+        String peeledTarget = item.getString(PEELED_TARGET_ATTRIBUTE);
+
+        if (isSymbolic) {
+            return new SymbolicRef(name, new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, target, null));
+        } else {
+            if (isPeeled) {
+                if (peeledTarget == null) {
+                    return new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name, ObjectId.fromString(target));
+                } else {
+                    return new ObjectIdRef.PeeledTag(
+                            Ref.Storage.PACKED,
+                            name,
+                            ObjectId.fromString(target),
+                            ObjectId.fromString(peeledTarget));
+                }
+            } else {
+                return new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, name, ObjectId.fromString(target));
+            }
+        }
+    }
+
+    private static boolean isDeleted(Item item) {
+        return item.isPresent(IS_DELETED_ATTRIBUTE) && item.getBoolean(IS_DELETED_ATTRIBUTE);
+    }
+
+    /**
+     * Runs a query against every shard of the refs of a repository. With more than one shard the shards are queried
+     * in parallel, and their items are merged into name order.
+     */
+    private Observable<Item> queryShards(String repositoryName, String indexName, Function<String, QuerySpec> query) {
+        int shardCount = configuration.getRefShardCount();
+        if (shardCount <= 1) {
+            return configuration.getDynamoClient().getAllItems(
+                    configuration.getRefsTableName(), indexName, query.apply(repositoryName));
+        }
+
+        return Observable.range(0, shardCount)
+                .flatMap(shard -> configuration.getDynamoClient().getAllItems(
+                        configuration.getRefsTableName(),
+                        indexName,
+                        query.apply(shardKey(repositoryName, shard)))
+                        .toList())
+                .reduce(new ArrayList<Item>(), (items, shardItems) -> {
+                    items.addAll(shardItems);
+                    return items;
+                })
+                .flatMap(items -> {
+                    items.sort(Comparator.comparing(item -> item.getString(NAME_ATTRIBUTE)));
+                    return Observable.from(items);
+                });
+    }
+
+    private Observable<Item> getAllRefItems(String repositoryName) {
+        return queryShards(repositoryName, null, hashKey -> new QuerySpec()
+                .withHashKey(REPOSITORY_NAME_ATTRIBUTE, hashKey)
+                .withScanIndexForward(true)
+                .withConsistentRead(true))
+                .filter(item -> !VERSION_ITEM_NAME.equals(item.getString(NAME_ATTRIBUTE)));
+    }
+
+    private Observable<Item> getPendingRefItems(String repositoryName) {
+        return queryShards(repositoryName, PENDING_INDEX_NAME, hashKey -> new QuerySpec()
+                .withHashKey(REPOSITORY_NAME_ATTRIBUTE, hashKey)
+                .withConsistentRead(true));
+    }
+
+    public Observable<Ref> getRef(String repositoryName, String refName) {
+        return withShardCountChecked(repositoryName, false, configuration.getDynamoClient().getItem(
+                configuration.getRefsTableName(),
+                new GetItemSpec()
+                        .withPrimaryKey(refKey(repositoryName, refName))
+                        .withConsistentRead(true))
+                .filter(item -> item != null && !isDeleted(item))
+                .map(item -> toRef(item)));
+    }
+
+    /**
+     * Returns the refs whose names start with the prefix. With ref snapshots, refs written since the snapshot was
+     * taken may only be found in the overlay, so the refs are read the same way as all refs and then filtered.
+     */
+    public Observable<Ref> getRefsWithPrefixSorted(String repositoryName, String prefix) {
+        if (isUsingSnapshots()) {
+            return getAllRefsSorted(repositoryName).filter(ref -> ref.getName().startsWith(prefix));
+        }
+
+        return withShardCountChecked(repositoryName, false, queryShards(repositoryName, null, hashKey -> new QuerySpec()
+                .withHashKey(REPOSITORY_NAME_ATTRIBUTE, hashKey)
+                .withRangeKeyCondition(new RangeKeyCondition(NAME_ATTRIBUTE).beginsWith(prefix))
+                .withScanIndexForward(true)
+                .withConsistentRead(true))
+                .filter(item -> !VERSION_ITEM_NAME.equals(item.getString(NAME_ATTRIBUTE)) && !isDeleted(item))
+                .map(item -> toRef(item)));
+    }
+
+    /**
+     * Returns all refs of a repository in name order. The refs are cached, and are only read again when the version of
+     * the refs has changed or the cached refs have become too old, so repository instances opened for every request
+     * share the refs read by earlier ones.
+     */
+    public Observable<Ref> getAllRefsSorted(String repositoryName) {
+        return withShardCountChecked(repositoryName, false, getRefsVersion(repositoryName))
+                .flatMap(version -> {
+                    ScannedRefs scannedRefs = this.scannedRefs.get(repositoryName);
+                    if (scannedRefs != null && scannedRefs.version == version &&
+                            System.currentTimeMillis() - scannedRefs.readTime < configuration.getMaximumRefCacheAge()) {
+                        logger.debug("Refs of repository {} are unchanged at version {}", repositoryName, version);
+                        return Observable.from(scannedRefs.refs);
                     }
+
+                    long readTime = System.currentTimeMillis();
+                    return readAllRefsSorted(repositoryName)
+                            .toList()
+                            .doOnNext(refs -> this.scannedRefs.put(
+                                    repositoryName,
+                                    new ScannedRefs(version, readTime, Collections.unmodifiableList(refs))))
+                            .flatMap(refs -> Observable.from(refs));
                 });
     }
+
+    /**
+     * Drops the cached refs of a repository, for when its refs were changed but the version couldn't be bumped.
+     */
+    public void forgetScannedRefs(String repositoryName) {
+        scannedRefs.remove(repositoryName);
+    }
+
+    private Observable<Ref> readAllRefsSorted(String repositoryName) {
+        if (isUsingSnapshots()) {
+            // Reading a snapshot waits for DynamoDB and S3 calls, so it mustn't hold a thread of the pools those calls
+            // are queued on
+            return Observable.defer(() -> Observable.from(getAllRefsFromSnapshot(repositoryName)))
+                    .subscribeOn(configuration.getExecutionModel().getBlockingPool().getScheduler());
+        }
+
+        return getAllRefItems(repositoryName)
+                .filter(item -> !isDeleted(item))
+                .map(item -> toRef(item));
+    }
+
+    private List<Ref> getAllRefsFromSnapshot(String repositoryName) {
+        for (int attempt = 0; attempt < MAXIMUM_SNAPSHOT_READ_ATTEMPTS; attempt++) {
+            String snapshotName = getSnapshotName(repositoryName);
+            if (snapshotName == null) {
+                List<Ref> refs = getAllRefItems(repositoryName)
+                        .filter(item -> !isDeleted(item))
+                        .map(item -> toRef(item))
+                        .toList()
+                        .toBlocking()
+                        .single();
+
+                if (refs.size() >= configuration.getRefSnapshotCompactionThreshold()) {
+                    compactRefsInBackground(repositoryName);
+                }
+                return refs;
+            }
+
+            List<Ref> snapshotRefs = readSnapshot(repositoryName, snapshotName);
+            if (snapshotRefs == null) {
+                continue;
+            }
+
+            List<Item> overlay;
+            try {
+                overlay = getPendingRefItems(repositoryName).toList().toBlocking().single();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to read pending refs of repository {}, reading all refs", repositoryName, e);
+                break;
+            }
+
+            if (!snapshotName.equals(getSnapshotName(repositoryName))) {
+                logger.debug("Ref snapshot of repository {} changed while it was being read, retrying",
+                        repositoryName);
+                continue;
+            }
+
+            if (overlay.size() >= configuration.getRefSnapshotCompactionThreshold()) {
+                compactRefsInBackground(repositoryName);
+            }
+
+            logger.debug("Read {} refs from snapshot {} and {} pending refs of repository {}",
+                    snapshotRefs.size(), snapshotName, overlay.size(), repositoryName);
+            return new ArrayList<>(applyOverlay(snapshotRefs, overlay).values());
+        }
+
+        return getAllRefItems(repositoryName)
+                .filter(item -> !isDeleted(item))
+                .map(item -> toRef(item))
+                .toList()
+                .toBlocking()
+                .single();
+    }
+
+    static TreeMap<String, Ref> applyOverlay(List<Ref> refs, List<Item> overlay) {
+        TreeMap<String, Ref> merged = new TreeMap<>();
+        for (Ref ref : refs) {
+            merged.put(ref.getName(), ref);
+        }
+
+        for (Item item : overlay) {
+            if (isDeleted(item)) {
+                merged.remove(item.getString(NAME_ATTRIBUTE));
+            } else {
+                merged.put(item.getString(NAME_ATTRIBUTE), toRef(item));
+            }
+        }
+
+        return merged;
+    }
+
+    private String getSnapshotName(String repositoryName) {
+        Item item = getVersionItem(repositoryName).toBlocking().lastOrDefault(null);
+        return item == null ? null : item.getString(SNAPSHOT_ATTRIBUTE);
+    }
+
+    private String newSnapshotName(String repositoryName) {
+        return new StringBuilder(repositoryName)
+                .append("/refs/")
+                .append(UUID.randomUUID().toString())
+                .append(".snapshot")
+                .toString();
+    }
+
+    private List<Ref> readSnapshot(String repositoryName, String snapshotName) {
+        Snapshot snapshot = snapshots.get(repositoryName);
+        if (snapshot != null && snapshot.name.equals(snapshotName)) {
+            return snapshot.refs;
+        }
+
+        try (S3Object object = configuration.getS3Client().getObject(configuration.getPacksBucketName(), snapshotName);
+             InputStream inputStream = object.getObjectContent()) {
+            List<Ref> refs = Collections.unmodifiableList(RefSnapshotCodec.read(inputStream));
+            snapshots.put(repositoryName, new Snapshot(snapshotName, refs));
+            return refs;
+        } catch (AmazonS3Exception e) {
+            if ("NoSuchKey".equals(e.getErrorCode())) {
+                logger.debug("Ref snapshot {} no longer exists", snapshotName);
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void compactRefsInBackground(String repositoryName) {
+        if (!compactionsInProgress.add(repositoryName)) {
+            return;
+        }
+
+        Async.fromAction(() -> compactRefs(repositoryName), null,
+                configuration.getExecutionModel().getBlockingPool().getScheduler())
+                .finallyDo(() -> compactionsInProgress.remove(repositoryName))
+                .subscribe(
+                        v -> {},
+                        t -> logger.warn("Unable to compact refs of repository {}", repositoryName, t));
+    }
+
+    /**
+     * Folds the refs changed since the current snapshot of a repository was taken into a new snapshot. Compactions
+     * of the same repository may safely run concurrently (even in different processes), only one of them publishes
+     * its snapshot.
+     */
+    public void compactRefs(String repositoryName) {
+        Item versionItem = getVersionItem(repositoryName).toBlocking().lastOrDefault(null);
+        String oldSnapshotName = versionItem == null ? null : versionItem.getString(SNAPSHOT_ATTRIBUTE);
+
+        List<Item> overlay = getPendingRefItems(repositoryName).toList().toBlocking().single();
+
+        List<Ref> baseRefs;
+        if (oldSnapshotName == null) {
+            baseRefs = getAllRefItems(repositoryName)
+                    .filter(item -> !isDeleted(item))
+                    .map(item -> toRef(item))
+                    .toList()
+                    .toBlocking()
+                    .single();
+        } else {
+            baseRefs = readSnapshot(repositoryName, oldSnapshotName);
+            if (baseRefs == null) {
+                return;
+            }
+        }
+
+        List<Ref> refs = new ArrayList<>(applyOverlay(baseRefs, overlay).values());
+        String snapshotName = newSnapshotName(repositoryName);
+        writeSnapshot(snapshotName, refs);
+
+        UpdateItemSpec publish = new UpdateItemSpec()
+                .withPrimaryKey(versionKey(repositoryName))
+                .withUpdateExpression("SET #snapshot = :snapshot")
+                .withNameMap(new NameMap().with("#snapshot", SNAPSHOT_ATTRIBUTE));
+        if (oldSnapshotName == null) {
+            publish = publish
+                    .withConditionExpression("attribute_not_exists(#snapshot)")
+                    .withValueMap(new ValueMap().withString(":snapshot", snapshotName));
+        } else {
+            publish = publish
+                    .withConditionExpression("#snapshot = :oldSnapshot")
+                    .withValueMap(new ValueMap()
+                            .withString(":snapshot", snapshotName)
+                            .withString(":oldSnapshot", oldSnapshotName));
+        }
+
+        boolean published = configuration.getDynamoClient()
+                .updateItem(configuration.getRefsTableName(), publish, tableCreator)
+                .map(v -> true)
+                .onErrorReturn(t -> false)
+                .toBlocking()
+                .lastOrDefault(false);
+
+        if (!published) {
+            logger.debug("Another compaction of refs of repository {} finished first", repositoryName);
+            configuration.getS3Client().deleteObject(configuration.getPacksBucketName(), snapshotName);
+            return;
+        }
+
+        snapshots.put(repositoryName, new Snapshot(snapshotName, Collections.unmodifiableList(refs)));
+
+        Observable.from(overlay)
+                .flatMap(item -> clearPending(repositoryName, item), MAXIMUM_CONCURRENT_PENDING_UPDATES)
+                .toBlocking()
+                .lastOrDefault(null);
+
+        if (oldSnapshotName != null) {
+            configuration.getS3Client().deleteObject(configuration.getPacksBucketName(), oldSnapshotName);
+        }
+
+        logger.debug("Compacted {} refs ({} pending) of repository {} into snapshot {}",
+                refs.size(), overlay.size(), repositoryName, snapshotName);
+    }
+
+    private void writeSnapshot(String snapshotName, List<Ref> refs) {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        try {
+            RefSnapshotCodec.write(refs, snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ObjectMetadata metaData = new ObjectMetadata();
+        metaData.setContentLength(snapshot.size());
+
+        configuration.getPackRepository().withPacksBucket(() -> configuration.getS3Client().putObject(
+                configuration.getPacksBucketName(),
+                snapshotName,
+                new ByteArrayInputStream(snapshot.toByteArray()),
+                metaData));
+    }
+
+    private Observable<Void> clearPending(String repositoryName, Item item) {
+        PrimaryKey key = refKey(repositoryName, item.getString(NAME_ATTRIBUTE));
+        NameMap nameMap = new NameMap().with("#pending", PENDING_ATTRIBUTE);
+        ValueMap valueMap = new ValueMap().withString(":pending", item.getString(PENDING_ATTRIBUTE));
+
+        Observable<Void> update;
+        if (isDeleted(item)) {
+            update = configuration.getDynamoClient().deleteItem(
+                    configuration.getRefsTableName(),
+                    new DeleteItemSpec()
+                            .withPrimaryKey(key)
+                            .withConditionExpression("#pending = :pending")
+                            .withNameMap(nameMap)
+                            .withValueMap(valueMap));
+        } else {
+            update = configuration.getDynamoClient().updateItem(
+                    configuration.getRefsTableName(),
+                    new UpdateItemSpec()
+                            .withPrimaryKey(key)
+                            .withUpdateExpression("REMOVE #pending")
+                            .withConditionExpression("#pending = :pending")
+                            .withNameMap(nameMap)
+                            .withValueMap(valueMap),
+                    tableCreator);
+        }
+
+        return update.onErrorResumeNext(t -> Observable.empty());
+    }
+
+    private static class ScannedRefs {
+        private final long version;
+        private final long readTime;
+        private final List<Ref> refs;
+
+        public ScannedRefs(long version, long readTime, List<Ref> refs) {
+            this.version = version;
+            this.readTime = readTime;
+            this.refs = refs;
+        }
+    }
+
+    private static class Snapshot {
+        private final String name;
+        private final List<Ref> refs;
+
+        public Snapshot(String name, List<Ref> refs) {
+            this.name = name;
+            this.refs = refs;
+        }
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015, Ravi Chodavarapu (rchodava@gmail.com)
+ *
+ * Parts of this are based on JGit, which has the following notes:
+ *
+ * Copyright (C) 2011, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.chodavarapu.jgitaws.repositories;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary format of a snapshot of all the refs of a repository. Refs are written sorted by name, each name sharing
+ * its prefix with the name before it, and the whole snapshot is deflated:
+ * <pre>
+ * "JGAR" version:int count:int
+ * ( prefixLength:varint suffixLength:varint suffix:bytes flags:byte
+ *   ( targetLength:varint target:bytes | objectId:20 bytes [ peeledObjectId:20 bytes ] ) )*
+ * </pre>
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class RefSnapshotCodec {
+    private static final int MAGIC = 0x4a474152;
+    private static final int VERSION = 1;
+
+    private static final int SYMBOLIC = 1;
+    private static final int PEELED = 2;
+    private static final int PEELED_TAG = 4;
+
+    private RefSnapshotCodec() {
+    }
+
+    public static void write(List<Ref> sortedRefs, OutputStream outputStream) throws IOException {
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream);
+        DataOutputStream out = new DataOutputStream(deflaterStream);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sortedRefs.size());
+
+        byte[] previousName = new byte[0];
+        byte[] objectId = new byte[Constants.OBJECT_ID_LENGTH];
+        for (Ref ref : sortedRefs) {
+            byte[] name = ref.getName().getBytes(StandardCharsets.UTF_8);
+            int prefixLength = commonPrefixLength(previousName, name);
+
+            writeVarInt(out, prefixLength);
+            writeVarInt(out, name.length - prefixLength);
+            out.write(name, prefixLength, name.length - prefixLength);
+
+            if (ref.isSymbolic()) {
+                out.writeByte(SYMBOLIC);
+                byte[] target = ref.getTarget().getName().getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, target.length);
+                out.write(target);
+            } else {
+                boolean isPeeledTag = ref.isPeeled() && ref.getPeeledObjectId() != null;
+                out.writeByte((ref.isPeeled() ? PEELED : 0) | (isPeeledTag ? PEELED_TAG : 0));
+
+                ref.getObjectId().copyRawTo(objectId, 0);
+                out.write(objectId);
+                if (isPeeledTag) {
+                    ref.getPeeledObjectId().copyRawTo(objectId, 0);
+                    out.write(objectId);
+                }
+            }
+
+            previousName = name;
+        }
+
+        out.flush();
+        deflaterStream.finish();
+    }
+
+    public static List<Ref> read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(inputStream));
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a ref snapshot");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported ref snapshot version " + version);
+        }
+
+        int count = in.readInt();
+        List<Ref> refs = new ArrayList<>(count);
+
+        byte[] name = new byte[64];
+        byte[] objectId = new byte[Constants.OBJECT_ID_LENGTH];
+        for (int i = 0; i < count; i++) {
+            int prefixLength = readVarInt(in);
+            int suffixLength = readVarInt(in);
+            if (prefixLength + suffixLength > name.length) {
+                byte[] longerName = new byte[Math.max(name.length * 2, prefixLength + suffixLength)];
+                System.arraycopy(name, 0, longerName, 0, prefixLength);
+                name = longerName;
+            }
+            in.readFully(name, prefixLength, suffixLength);
+            String refName = new String(name, 0, prefixLength + suffixLength, StandardCharsets.UTF_8);
+
+            int flags = in.readUnsignedByte();
+            if ((flags & SYMBOLIC) != 0) {
+                byte[] target = new byte[readVarInt(in)];
+                in.readFully(target);
+                refs.add(new SymbolicRef(refName, new ObjectIdRef.Unpeeled(
+                        Ref.Storage.PACKED, new String(target, StandardCharsets.UTF_8), null)));
+                continue;
+            }
+
+            in.readFully(objectId);
+            ObjectId id = ObjectId.fromRaw(objectId);
+
+            if ((flags & PEELED_TAG) != 0) {
+                in.readFully(objectId);
+                refs.add(new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, refName, id, ObjectId.fromRaw(objectId)));
+            } else if ((flags & PEELED) != 0) {
+                refs.add(new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, refName, id));
+            } else {
+                refs.add(new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, refName, id));
+            }
+        }
+
+        return refs;
+    }
+
+    private static int commonPrefixLength(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed ref snapshot");
+    }
+}
@@ -0,0 +1,131 @@
+package org.chodavarapu.jgitaws;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import org.chodavarapu.jgitaws.aws.DynamoClient;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class JGitAwsAsyncClientTest {
+    private static final String REPOSITORY = "repo";
+    private static final String COMMIT = "0123456789abcdef0123456789abcdef01234567";
+
+    private JGitAwsConfiguration configuration;
+    private JGitAwsAsyncClient client;
+    private CountDownLatch dynamoReleased;
+
+    private static Item refItem(String refName) {
+        return new Item()
+                .withString("RepositoryName", REPOSITORY)
+                .withString("Name", refName)
+                .withString("Target", COMMIT)
+                .withBoolean("IsSymbolic", false)
+                .withBoolean("IsPeeled", false);
+    }
+
+    @Before
+    public void setUp() {
+        dynamoReleased = new CountDownLatch(1);
+        configuration = new JGitAwsConfiguration(new StubDynamoClient(), null);
+        configuration.setRefSnapshotsEnabled(true);
+        client = new JGitAwsAsyncClient(configuration);
+    }
+
+    @After
+    public void tearDown() {
+        dynamoReleased.countDown();
+        configuration.getExecutionModel().shutdown();
+    }
+
+    private <T> T awaitAfterRelease(CompletableFuture<T> future) throws Exception {
+        assertFalse(future.isDone());
+        dynamoReleased.countDown();
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void prefixReadWithSnapshotsDoesNotBlockCaller() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<List<Ref>> future = client.getRefsWithPrefix(REPOSITORY, "refs/heads/");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        List<Ref> refs = awaitAfterRelease(future);
+
+        assertEquals(1, refs.size());
+        assertEquals("refs/heads/master", refs.get(0).getName());
+    }
+
+    @Test
+    public void allRefsReadWithSnapshotsDoesNotBlockCaller() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<List<Ref>> future = client.getAllRefs(REPOSITORY);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        assertEquals(2, awaitAfterRelease(future).size());
+    }
+
+    /**
+     * Serves a refs table with the pending index and two refs, but only once {@link #dynamoReleased} is counted down.
+     */
+    private class StubDynamoClient extends DynamoClient {
+        private StubDynamoClient() {
+            super(new AmazonDynamoDBClient(new BasicAWSCredentials("access", "secret")));
+        }
+
+        private void awaitRelease() {
+            try {
+                dynamoReleased.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public Observable<TableDescription> describeTable(String tableName) {
+            awaitRelease();
+            return Observable.just(new TableDescription()
+                    .withTableName(tableName)
+                    .withLocalSecondaryIndexes(new LocalSecondaryIndexDescription().withIndexName("PendingIndex")));
+        }
+
+        @Override
+        public Observable<Item> getItem(String tableName, GetItemSpec getItemSpec) {
+            return Observable.defer(() -> {
+                awaitRelease();
+                return Observable.just(new Item()
+                        .withString("RepositoryName", REPOSITORY)
+                        .withString("Name", ".version")
+                        .withLong("Version", 1));
+            });
+        }
+
+        @Override
+        public Observable<Item> getAllItems(String tableName, String indexName, QuerySpec querySpec) {
+            return Observable.defer(() -> {
+                awaitRelease();
+                return Observable.from(Arrays.asList(refItem("refs/heads/master"), refItem("refs/tags/v1")));
+            });
+        }
+    }
+}
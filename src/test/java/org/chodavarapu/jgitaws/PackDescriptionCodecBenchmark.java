@@ -0,0 +1,99 @@
+package org.chodavarapu.jgitaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.chodavarapu.jgitaws.repositories.PackDescriptionCodec;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures what it costs per pack to turn the items of a pack list query back into pack descriptions, with the JSON
+ * encoding and with the binary encoding. Items are converted to and from their wire form the same way the DynamoDB
+ * client does when it reads a query result.
+ *
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackDescriptionCodecBenchmark {
+    private static final int PACKS = 1000;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) {
+        DfsRepositoryDescription repository = new DfsRepositoryDescription("benchmark");
+
+        List<Map<String, AttributeValue>> jsonItems = new ArrayList<>(PACKS);
+        List<Map<String, AttributeValue>> binaryItems = new ArrayList<>(PACKS);
+        long jsonSize = 0;
+        long binarySize = 0;
+        for (int i = 0; i < PACKS; i++) {
+            DfsPackDescription desc = newPackDescription(repository, i);
+
+            String json = PackDescriptionCodec.toJson(desc);
+            byte[] binary = PackDescriptionCodec.encode(desc);
+            jsonSize += json.length();
+            binarySize += binary.length;
+
+            jsonItems.add(InternalUtils.toAttributeValues(new Item().withString("Description", json)));
+            binaryItems.add(InternalUtils.toAttributeValues(new Item().withBinary("EncodedDescription", binary)));
+        }
+
+        System.out.printf("Average encoded size: json %d bytes, binary %d bytes%n",
+                jsonSize / PACKS, binarySize / PACKS);
+
+        for (int warmup = 0; warmup < 3; warmup++) {
+            readJson(repository, jsonItems);
+            readBinary(repository, binaryItems);
+        }
+
+        System.out.printf("Listing cost per pack: json %d ns, binary %d ns%n",
+                readJson(repository, jsonItems), readBinary(repository, binaryItems));
+    }
+
+    private static DfsPackDescription newPackDescription(DfsRepositoryDescription repository, int i) {
+        DfsPackDescription desc = new DfsPackDescription(repository, "pack-" + System.nanoTime() + "-" + i + ".pack")
+                .setPackSource(DfsObjDatabase.PackSource.values()[i % DfsObjDatabase.PackSource.values().length])
+                .setLastModified(System.currentTimeMillis())
+                .setObjectCount(1000 + i * 37)
+                .setDeltaCount(400 + i * 11)
+                .setIndexVersion(2);
+
+        desc.addFileExt(PackExt.PACK);
+        desc.setFileSize(PackExt.PACK, 1024L * 1024 + i * 4096);
+        desc.addFileExt(PackExt.INDEX);
+        desc.setFileSize(PackExt.INDEX, 32L * 1024 + i * 64);
+        if (i % 10 == 0) {
+            desc.addFileExt(PackExt.BITMAP_INDEX);
+            desc.setFileSize(PackExt.BITMAP_INDEX, 8L * 1024 + i);
+        }
+
+        return desc;
+    }
+
+    private static long readJson(DfsRepositoryDescription repository, List<Map<String, AttributeValue>> items) {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Item item : InternalUtils.toItemList(items)) {
+                PackDescriptionCodec.fromJson(item.getString("Description"),
+                        new DfsPackDescription(repository, "pack-benchmark"));
+            }
+        }
+        return (System.nanoTime() - start) / ((long) ROUNDS * items.size());
+    }
+
+    private static long readBinary(DfsRepositoryDescription repository, List<Map<String, AttributeValue>> items) {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Item item : InternalUtils.toItemList(items)) {
+                PackDescriptionCodec.decode(item.getBinary("EncodedDescription"),
+                        new DfsPackDescription(repository, "pack-benchmark"));
+            }
+        }
+        return (System.nanoTime() - start) / ((long) ROUNDS * items.size());
+    }
+}
@@ -0,0 +1,81 @@
+package org.chodavarapu.jgitaws.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class AdaptiveRateLimiterTest {
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void growsByConsumedUnitsDuringSlowStart() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 1000);
+
+        limiter.onSuccess(5, 5);
+        assertEquals(15, limiter.getRate(), DELTA);
+
+        limiter.onSuccess(0.5, 0.5);
+        assertEquals(16, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void halvesRateWhenThrottled() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 1, 1000);
+
+        limiter.onThrottle();
+        assertEquals(50, limiter.getRate(), DELTA);
+        limiter.onThrottle();
+        assertEquals(25, limiter.getRate(), DELTA);
+        assertEquals(2, limiter.getThrottleCount());
+    }
+
+    @Test
+    public void growsAdditivelyAfterThrottling() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 1, 1000);
+
+        limiter.onThrottle();
+        limiter.onSuccess(20, 20);
+        assertEquals(51, limiter.getRate(), DELTA);
+        limiter.onSuccess(20, 20);
+        assertEquals(52, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void staysWithinMinimumAndMaximumRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(4, 2, 10);
+
+        limiter.onThrottle();
+        limiter.onThrottle();
+        limiter.onThrottle();
+        assertEquals(2, limiter.getRate(), DELTA);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.onSuccess(1, 1);
+        }
+        assertEquals(10, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void acquireWithinAvailableTokensDoesNotWait() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1000, 1, 1000);
+
+        long start = System.nanoTime();
+        limiter.acquire(100);
+        limiter.acquire(100);
+        assertTrue(System.nanoTime() - start < 50_000_000L);
+    }
+
+    @Test
+    public void acquireBeyondAvailableTokensWaitsForRefill() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 1, 100);
+
+        limiter.acquire(100);
+        long start = System.nanoTime();
+        limiter.acquire(10);
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+    }
+}
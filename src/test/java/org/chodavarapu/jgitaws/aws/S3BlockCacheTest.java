@@ -0,0 +1,179 @@
+package org.chodavarapu.jgitaws.aws;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class S3BlockCacheTest {
+    private static final String BUCKET = "bucket";
+    private static final String OBJECT = "repo/pack-1.pack";
+
+    private static S3BlockCache.Block block(int size) {
+        return new S3BlockCache.Block(new byte[size], 1024);
+    }
+
+    @Test
+    public void returnsCachedBlocks() {
+        S3BlockCache cache = new S3BlockCache(1024);
+        S3BlockCache.Block block = block(100);
+
+        cache.put(BUCKET, OBJECT, 0, block);
+
+        assertSame(block, cache.get(BUCKET, OBJECT, 0));
+        assertNull(cache.get(BUCKET, OBJECT, 100));
+        assertNull(cache.get("other", OBJECT, 0));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(100, cache.getCurrentSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBlocksOnceFull() {
+        S3BlockCache cache = new S3BlockCache(300);
+        cache.put(BUCKET, OBJECT, 0, block(100));
+        cache.put(BUCKET, OBJECT, 100, block(100));
+        cache.put(BUCKET, OBJECT, 200, block(100));
+
+        assertNotNull(cache.get(BUCKET, OBJECT, 0));
+        cache.put(BUCKET, OBJECT, 300, block(100));
+
+        assertTrue(cache.contains(BUCKET, OBJECT, 0));
+        assertFalse(cache.contains(BUCKET, OBJECT, 100));
+        assertTrue(cache.contains(BUCKET, OBJECT, 200));
+        assertTrue(cache.contains(BUCKET, OBJECT, 300));
+        assertEquals(300, cache.getCurrentSize());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void replacingBlockKeepsSizeAccurate() {
+        S3BlockCache cache = new S3BlockCache(1024);
+        cache.put(BUCKET, OBJECT, 0, block(100));
+        cache.put(BUCKET, OBJECT, 0, block(40));
+
+        assertEquals(40, cache.getCurrentSize());
+    }
+
+    @Test
+    public void doesNotCacheBlocksLargerThanCache() {
+        S3BlockCache cache = new S3BlockCache(100);
+        cache.put(BUCKET, OBJECT, 0, block(50));
+        cache.put(BUCKET, OBJECT, 100, block(101));
+
+        assertTrue(cache.contains(BUCKET, OBJECT, 0));
+        assertFalse(cache.contains(BUCKET, OBJECT, 100));
+        assertEquals(50, cache.getCurrentSize());
+    }
+
+    @Test
+    public void loadsMissingBlocksOnce() throws Exception {
+        S3BlockCache cache = new S3BlockCache(1024);
+        S3BlockCache.Block block = block(100);
+
+        assertSame(block, cache.getOrLoad(BUCKET, OBJECT, 0, () -> block));
+        assertSame(block, cache.getOrLoad(BUCKET, OBJECT, 0, () -> {
+            throw new AssertionError("Cached block should not be loaded again");
+        }));
+    }
+
+    @Test
+    public void coalescesConcurrentLoadsOfSameBlock() throws Exception {
+        S3BlockCache cache = new S3BlockCache(1024);
+        S3BlockCache.Block block = block(100);
+        AtomicInteger loadCount = new AtomicInteger();
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoad = new CountDownLatch(1);
+
+        int readers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<S3BlockCache.Block>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cache.getOrLoad(BUCKET, OBJECT, 0, () -> {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                releaseLoad.await();
+                return block;
+            })));
+
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < readers; i++) {
+                results.add(executor.submit(() -> cache.getOrLoad(BUCKET, OBJECT, 0, () -> {
+                    loadCount.incrementAndGet();
+                    return block;
+                })));
+            }
+
+            while (cache.getCoalescedLoadCount() < readers - 1) {
+                Thread.sleep(1);
+            }
+            releaseLoad.countDown();
+
+            for (Future<S3BlockCache.Block> result : results) {
+                assertSame(block, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loadCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedLoadIsReportedToWaitingReadersAndNotCached() throws Exception {
+        S3BlockCache cache = new S3BlockCache(1024);
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoad = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<S3BlockCache.Block> loader = executor.submit(() -> cache.getOrLoad(BUCKET, OBJECT, 0, () -> {
+                loadStarted.countDown();
+                releaseLoad.await();
+                throw new IOException("Read failed");
+            }));
+
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            Future<S3BlockCache.Block> waiter = executor.submit(
+                    () -> cache.getOrLoad(BUCKET, OBJECT, 0, () -> block(100)));
+
+            while (cache.getCoalescedLoadCount() < 1) {
+                Thread.sleep(1);
+            }
+            releaseLoad.countDown();
+
+            for (Future<S3BlockCache.Block> result : Arrays.asList(loader, waiter)) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("Expected the load to fail");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertFalse(cache.contains(BUCKET, OBJECT, 0));
+        assertNotNull(cache.getOrLoad(BUCKET, OBJECT, 0, () -> block(100)));
+    }
+}
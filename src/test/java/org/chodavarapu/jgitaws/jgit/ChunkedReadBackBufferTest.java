@@ -0,0 +1,171 @@
+package org.chodavarapu.jgitaws.jgit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class ChunkedReadBackBufferTest {
+    private static final int CHUNK_SIZE = 16;
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(ChunkedReadBackBuffer buffer, long position, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(length);
+        while (dst.hasRemaining()) {
+            if (buffer.read(position + dst.position(), dst) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[7];
+        int n;
+        while ((n = inputStream.read(b, 0, b.length)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInPieces(ChunkedReadBackBuffer buffer, byte[] data, int pieceSize) throws IOException {
+        for (int off = 0; off < data.length; off += pieceSize) {
+            buffer.write(data, off, Math.min(pieceSize, data.length - off));
+        }
+    }
+
+    @Test
+    public void readsBackDataHeldInMemory() throws IOException {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 1024);
+        byte[] data = data(100);
+        try {
+            writeInPieces(buffer, data, 5);
+            buffer.finish();
+
+            assertEquals(100, buffer.length());
+            assertTrue(buffer.isFinished());
+            assertArrayEquals(data, readAll(buffer, 0, 100));
+            assertArrayEquals(Arrays.copyOfRange(data, 13, 57), readAll(buffer, 13, 44));
+            assertEquals(-1, buffer.read(100, ByteBuffer.allocate(1)));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void readsBackDataSpilledToDisk() throws IOException {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 20);
+        byte[] data = data(200);
+        try {
+            writeInPieces(buffer, data, 9);
+
+            // Before finishing, the tail of the data is still in the chunk that hasn't been spilled yet
+            assertArrayEquals(data, readAll(buffer, 0, 200));
+
+            buffer.finish();
+            assertArrayEquals(data, readAll(buffer, 0, 200));
+            assertArrayEquals(Arrays.copyOfRange(data, 30, 150), readAll(buffer, 30, 120));
+            assertArrayEquals(data, readAll(buffer.newInputStream()));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void streamsRangesOfData() throws IOException {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 40);
+        byte[] data = data(90);
+        try {
+            buffer.write(data, 0, data.length);
+            buffer.finish();
+
+            assertArrayEquals(Arrays.copyOfRange(data, 10, 60), readAll(buffer.newInputStream(10, 50)));
+            assertArrayEquals(Arrays.copyOfRange(data, 32, 90), readAll(buffer.newInputStream(32, 100)));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void streamsDataWhileItIsBeingWritten() throws Exception {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 64);
+        byte[] data = data(500);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> streamed = executor.submit(() -> readAll(buffer.newInputStream()));
+
+            for (int off = 0; off < data.length; off += 23) {
+                buffer.write(data, off, Math.min(23, data.length - off));
+                Thread.sleep(1);
+            }
+            assertFalse(streamed.isDone());
+            buffer.finish();
+
+            assertArrayEquals(data, streamed.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void streamReturnsSingleBytes() throws IOException {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 1024);
+        try {
+            buffer.write(new byte[] { 1, (byte) 0xff }, 0, 2);
+            buffer.finish();
+
+            InputStream inputStream = buffer.newInputStream();
+            assertEquals(1, inputStream.read());
+            assertEquals(0xff, inputStream.read());
+            assertEquals(-1, inputStream.read());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void releasedChunksCanBeReused() throws IOException {
+        ChunkedReadBackBuffer buffer = new ChunkedReadBackBuffer(CHUNK_SIZE, 16);
+        byte[] data = data(64);
+        buffer.write(data, 0, data.length);
+        buffer.finish();
+
+        buffer.release();
+        buffer.release();
+
+        ChunkedReadBackBuffer reused = new ChunkedReadBackBuffer(CHUNK_SIZE, 1024);
+        try {
+            byte[] other = new byte[CHUNK_SIZE + 3];
+            Arrays.fill(other, (byte) 42);
+            reused.write(other, 0, other.length);
+            reused.finish();
+            assertArrayEquals(other, readAll(reused, 0, other.length));
+        } finally {
+            reused.release();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.chodavarapu.jgitaws.jgit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class CopyingDfsOutputStreamTest {
+    private static DfsOutputStream into(ByteArrayOutputStream written) {
+        return new DfsOutputStream() {
+            @Override
+            public void write(byte[] buf, int off, int len) {
+                written.write(buf, off, len);
+            }
+
+            @Override
+            public int read(long position, ByteBuffer buf) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Test
+    public void handsCopyToConsumerOnClose() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        AtomicReference<byte[]> copy = new AtomicReference<>();
+
+        try (CopyingDfsOutputStream out = new CopyingDfsOutputStream(into(written), 16, copy::set)) {
+            out.write(new byte[]{1, 2, 3});
+            out.write(new byte[]{0, 4, 5, 0}, 1, 2);
+            assertNull(copy.get());
+        }
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, written.toByteArray());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, copy.get());
+    }
+
+    @Test
+    public void doesNotCopyFilesLargerThanMaximum() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        AtomicReference<byte[]> copy = new AtomicReference<>();
+
+        try (CopyingDfsOutputStream out = new CopyingDfsOutputStream(into(written), 4, copy::set)) {
+            out.write(new byte[]{1, 2, 3});
+            out.write(new byte[]{4, 5});
+        }
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, written.toByteArray());
+        assertNull(copy.get());
+    }
+}
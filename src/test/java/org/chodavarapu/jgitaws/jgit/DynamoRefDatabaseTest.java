@@ -0,0 +1,151 @@
+package org.chodavarapu.jgitaws.jgit;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.aws.DynamoClient;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class DynamoRefDatabaseTest {
+    private static final String REPOSITORY = "repo";
+    private static final String COMMIT = "0123456789abcdef0123456789abcdef01234567";
+
+    private JGitAwsConfiguration configuration;
+    private List<Item> refItems;
+    private long version;
+    private int refQueries;
+    private int itemReads;
+
+    private static Item refItem(String refName) {
+        return new Item()
+                .withString("RepositoryName", REPOSITORY)
+                .withString("Name", refName)
+                .withString("Target", COMMIT)
+                .withBoolean("IsSymbolic", false)
+                .withBoolean("IsPeeled", false);
+    }
+
+    private AmazonRepository openRepository() throws IOException {
+        return new AmazonRepository.Builder()
+                .setConfiguration(configuration)
+                .setRepositoryDescription(new DfsRepositoryDescription(REPOSITORY))
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        refItems = new ArrayList<>();
+        refItems.add(refItem("refs/heads/master"));
+        version = 1;
+        refQueries = 0;
+        itemReads = 0;
+        configuration = new JGitAwsConfiguration(new StubDynamoClient(), null);
+    }
+
+    @After
+    public void tearDown() {
+        configuration.getExecutionModel().shutdown();
+    }
+
+    @Test
+    public void repositoriesOpenedLaterReuseScannedRefs() throws IOException {
+        Map<String, Ref> first = openRepository().getRefDatabase().getRefs(RefDatabase.ALL);
+        Map<String, Ref> second = openRepository().getRefDatabase().getRefs(RefDatabase.ALL);
+
+        assertEquals(1, refQueries);
+        assertEquals(first.keySet(), second.keySet());
+    }
+
+    @Test
+    public void refsAreScannedAgainWhenVersionChanges() throws IOException {
+        openRepository().getRefDatabase().getRefs(RefDatabase.ALL);
+
+        refItems.add(refItem("refs/heads/topic"));
+        version++;
+        Map<String, Ref> refs = openRepository().getRefDatabase().getRefs(RefDatabase.ALL);
+
+        assertEquals(2, refQueries);
+        assertEquals(2, refs.size());
+    }
+
+    @Test
+    public void singleRefsAreServedFromLoadedRefs() throws IOException {
+        RefDatabase refDatabase = openRepository().getRefDatabase();
+        refDatabase.getRefs(RefDatabase.ALL);
+        int reads = itemReads + refQueries;
+
+        assertEquals(COMMIT, refDatabase.exactRef("refs/heads/master").getObjectId().name());
+        assertNull(refDatabase.exactRef("refs/heads/missing"));
+        assertEquals("refs/heads/master", refDatabase.getRef("master").getName());
+        assertTrue(refDatabase.isNameConflicting("refs/heads/master/topic"));
+        assertTrue(refDatabase.isNameConflicting("refs/heads"));
+        assertFalse(refDatabase.isNameConflicting("refs/heads/topic"));
+
+        assertEquals(reads, itemReads + refQueries);
+    }
+
+    @Test
+    public void singleRefsAreReadFromDynamoBeforeRefsAreLoaded() throws IOException {
+        RefDatabase refDatabase = openRepository().getRefDatabase();
+
+        assertEquals("refs/heads/master", refDatabase.getRef("master").getName());
+
+        assertEquals(0, refQueries);
+        assertTrue(itemReads > 0);
+    }
+
+    /**
+     * Serves the version item and {@link #refItems}, and counts the reads.
+     */
+    private class StubDynamoClient extends DynamoClient {
+        private StubDynamoClient() {
+            super(new AmazonDynamoDBClient(new BasicAWSCredentials("access", "secret")));
+        }
+
+        @Override
+        public Observable<Item> getItem(String tableName, GetItemSpec getItemSpec) {
+            itemReads++;
+            for (KeyAttribute component : getItemSpec.getKeyComponents()) {
+                if (component.getName().equals("Name") && !component.getValue().equals(".version")) {
+                    return Observable.from(refItems)
+                            .filter(item -> item.getString("Name").equals(component.getValue()))
+                            .lastOrDefault(null);
+                }
+            }
+
+            return Observable.just(new Item()
+                    .withString("RepositoryName", REPOSITORY)
+                    .withString("Name", ".version")
+                    .withLong("Version", version));
+        }
+
+        @Override
+        public Observable<Item> getAllItems(String tableName, String indexName, QuerySpec querySpec) {
+            refQueries++;
+            return Observable.from(new ArrayList<>(refItems));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.chodavarapu.jgitaws.jgit;
+
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.PackIndexWriter;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackBloomFilterTest {
+    private static final int BITS_PER_OBJECT = 10;
+
+    private static List<ObjectId> randomIds(Random random, int count) {
+        List<ObjectId> ids = new ArrayList<>(count);
+        byte[] raw = new byte[20];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(raw);
+            ids.add(ObjectId.fromRaw(raw));
+        }
+        return ids;
+    }
+
+    private static PackIndex index(List<ObjectId> ids) throws IOException {
+        List<PackedObjectInfo> objects = new ArrayList<>(ids.size());
+        long offset = 12;
+        for (ObjectId id : ids) {
+            PackedObjectInfo object = new PackedObjectInfo(id);
+            object.setOffset(offset);
+            objects.add(object);
+            offset += 100;
+        }
+        Collections.sort(objects);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackIndexWriter.createVersion(out, 2).write(objects, new byte[20]);
+        return PackIndex.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static int countMatches(PackBloomFilter filter, List<ObjectId> ids) {
+        int matches = 0;
+        for (ObjectId id : ids) {
+            if (filter.mightContain(id)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Test
+    public void containsEveryIndexedObject() throws IOException {
+        List<ObjectId> ids = randomIds(new Random(1), 5000);
+
+        PackBloomFilter filter = PackBloomFilter.create(index(ids), BITS_PER_OBJECT);
+
+        assertEquals(ids.size(), countMatches(filter, ids));
+    }
+
+    @Test
+    public void rejectsMostObjectsNotIndexed() throws IOException {
+        Random random = new Random(2);
+        PackBloomFilter filter = PackBloomFilter.create(index(randomIds(random, 5000)), BITS_PER_OBJECT);
+
+        // Ten bits per object gives a false positive rate of about 1%
+        int falsePositives = countMatches(filter, randomIds(random, 10000));
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void emptyIndexContainsNothing() throws IOException {
+        PackBloomFilter filter = PackBloomFilter.create(index(Collections.emptyList()), BITS_PER_OBJECT);
+
+        assertEquals(0, countMatches(filter, randomIds(new Random(3), 1000)));
+    }
+
+    @Test
+    public void roundTripsThroughBytes() throws IOException {
+        Random random = new Random(4);
+        List<ObjectId> ids = randomIds(random, 1000);
+        List<ObjectId> others = randomIds(random, 1000);
+        PackBloomFilter filter = PackBloomFilter.create(index(ids), BITS_PER_OBJECT);
+
+        PackBloomFilter read = PackBloomFilter.read(new ByteArrayInputStream(filter.toByteArray()));
+
+        assertEquals(ids.size(), countMatches(read, ids));
+        for (ObjectId id : others) {
+            assertEquals(filter.mightContain(id), read.mightContain(id));
+        }
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotBloomFilters() throws IOException {
+        byte[] bytes = PackBloomFilter.create(index(Collections.emptyList()), BITS_PER_OBJECT).toByteArray();
+        bytes[0] = 'X';
+
+        try {
+            PackBloomFilter.read(new ByteArrayInputStream(bytes));
+            fail("Expected a file with the wrong magic to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Not a pack bloom filter"));
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedVersion() throws IOException {
+        byte[] bytes = PackBloomFilter.create(index(Collections.emptyList()), BITS_PER_OBJECT).toByteArray();
+        bytes[7] = 2;
+
+        try {
+            PackBloomFilter.read(new ByteArrayInputStream(bytes));
+            fail("Expected an unsupported version to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+}
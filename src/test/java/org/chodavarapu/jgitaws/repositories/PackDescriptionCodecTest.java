@@ -0,0 +1,164 @@
+package org.chodavarapu.jgitaws.repositories;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class PackDescriptionCodecTest {
+    private static final DfsRepositoryDescription REPOSITORY = new DfsRepositoryDescription("repo");
+    private static final String PACK_NAME = "pack-1-INSERT";
+
+    private static DfsPackDescription newDescription() {
+        return new DfsPackDescription(REPOSITORY, PACK_NAME);
+    }
+
+    private static DfsPackDescription description() {
+        DfsPackDescription desc = newDescription()
+                .setPackSource(DfsObjDatabase.PackSource.GC)
+                .setLastModified(1446000000000L)
+                .setObjectCount(123456)
+                .setDeltaCount(7890)
+                .setIndexVersion(2);
+
+        desc.addFileExt(PackExt.PACK);
+        desc.setFileSize(PackExt.PACK, 5L * 1024 * 1024 * 1024);
+        desc.addFileExt(PackExt.INDEX);
+        desc.setFileSize(PackExt.INDEX, 4096);
+        return desc;
+    }
+
+    private static void assertDescriptionEquals(DfsPackDescription expected, DfsPackDescription actual) {
+        assertEquals(expected.getPackSource(), actual.getPackSource());
+        assertEquals(expected.getLastModified(), actual.getLastModified());
+        assertEquals(expected.getObjectCount(), actual.getObjectCount());
+        assertEquals(expected.getDeltaCount(), actual.getDeltaCount());
+        assertEquals(expected.getIndexVersion(), actual.getIndexVersion());
+        for (PackExt ext : PackExt.values()) {
+            assertEquals(ext.getExtension(), expected.hasFileExt(ext), actual.hasFileExt(ext));
+            assertEquals(ext.getExtension(), expected.getFileSize(ext), actual.getFileSize(ext));
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void roundTripsDescription() {
+        DfsPackDescription desc = description();
+
+        DfsPackDescription decoded = PackDescriptionCodec.decode(PackDescriptionCodec.encode(desc), newDescription());
+
+        assertDescriptionEquals(desc, decoded);
+    }
+
+    @Test
+    public void roundTripsDescriptionWithoutSourceOrFiles() {
+        DfsPackDescription desc = newDescription().setLastModified(1);
+
+        DfsPackDescription decoded = PackDescriptionCodec.decode(PackDescriptionCodec.encode(desc), newDescription());
+
+        assertNull(decoded.getPackSource());
+        assertDescriptionEquals(desc, decoded);
+    }
+
+    @Test
+    public void roundTripsLargeValues() {
+        DfsPackDescription desc = description()
+                .setLastModified(Long.MAX_VALUE)
+                .setObjectCount(Long.MAX_VALUE)
+                .setDeltaCount(0);
+
+        DfsPackDescription decoded = PackDescriptionCodec.decode(PackDescriptionCodec.encode(desc), newDescription());
+
+        assertDescriptionEquals(desc, decoded);
+    }
+
+    @Test
+    public void binaryEncodingIsSmallerThanJson() {
+        DfsPackDescription desc = description();
+
+        assertTrue(PackDescriptionCodec.encode(desc).length
+                < PackDescriptionCodec.toJson(desc).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void readsLegacyJsonDescriptions() {
+        String json = "{\"modified\":1446000000000,\"objects\":123456,\"deltas\":7890,\"ixVersion\":2,"
+                + "\"packSize\":5368709120,\"idxSize\":4096,\"source\":\"GC\"}";
+
+        DfsPackDescription decoded = PackDescriptionCodec.fromJson(json, newDescription());
+
+        assertDescriptionEquals(description(), decoded);
+    }
+
+    @Test
+    public void jsonAndBinaryEncodingsDecodeAlike() {
+        DfsPackDescription desc = description();
+
+        assertDescriptionEquals(
+                PackDescriptionCodec.fromJson(PackDescriptionCodec.toJson(desc), newDescription()),
+                PackDescriptionCodec.decode(PackDescriptionCodec.encode(desc), newDescription()));
+    }
+
+    @Test
+    public void skipsUnknownFileExtensions() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);
+        writeString(out, "INSERT");
+        writeVarLong(out, 10);
+        writeVarLong(out, 20);
+        writeVarLong(out, 5);
+        writeVarLong(out, 2);
+        writeVarLong(out, 2);
+        writeString(out, "future");
+        writeVarLong(out, 300);
+        writeString(out, PackExt.PACK.getExtension());
+        writeVarLong(out, 400);
+
+        DfsPackDescription decoded = PackDescriptionCodec.decode(out.toByteArray(), newDescription());
+
+        assertEquals(DfsObjDatabase.PackSource.INSERT, decoded.getPackSource());
+        assertEquals(20, decoded.getObjectCount());
+        assertTrue(decoded.hasFileExt(PackExt.PACK));
+        assertEquals(400, decoded.getFileSize(PackExt.PACK));
+        assertFalse(decoded.hasFileExt(PackExt.INDEX));
+    }
+
+    @Test
+    public void rejectsUnsupportedVersion() {
+        byte[] encoded = PackDescriptionCodec.encode(description());
+        encoded[0] = 2;
+
+        try {
+            PackDescriptionCodec.decode(encoded, newDescription());
+            fail("Expected an unsupported version to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.chodavarapu.jgitaws.repositories;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.chodavarapu.jgitaws.JGitAwsConfiguration;
+import org.chodavarapu.jgitaws.aws.DynamoClient;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class RefRepositoryShardingTest {
+    private static final String REPOSITORY = "repo";
+    private static final String COMMIT = "0123456789abcdef0123456789abcdef01234567";
+    private static final int SHARD_COUNT = 4;
+
+    private JGitAwsConfiguration configuration;
+    private RefRepository refRepository;
+    private List<String> readHashKeys;
+    private Map<String, List<Item>> itemsByHashKey;
+
+    private static Item refItem(String hashKey, String refName, boolean deleted) {
+        Item item = new Item()
+                .withString("RepositoryName", hashKey)
+                .withString("Name", refName)
+                .withString("Target", COMMIT)
+                .withBoolean("IsSymbolic", false)
+                .withBoolean("IsPeeled", false);
+        return deleted ? item.withBoolean("IsDeleted", true) : item;
+    }
+
+    private static Item versionItem(String hashKey, long version) {
+        return new Item()
+                .withString("RepositoryName", hashKey)
+                .withString("Name", ".version")
+                .withLong("Version", version);
+    }
+
+    private static String hashKey(Iterable<KeyAttribute> key) {
+        for (KeyAttribute component : key) {
+            if (component.getName().equals("RepositoryName")) {
+                return (String) component.getValue();
+            }
+        }
+        throw new AssertionError("Key has no hash key");
+    }
+
+    private static String nameOf(Iterable<KeyAttribute> key) {
+        for (KeyAttribute component : key) {
+            if (component.getName().equals("Name")) {
+                return (String) component.getValue();
+            }
+        }
+        throw new AssertionError("Key has no range key");
+    }
+
+    @Before
+    public void setUp() {
+        readHashKeys = new ArrayList<>();
+        itemsByHashKey = new HashMap<>();
+        configuration = new JGitAwsConfiguration(new StubDynamoClient(), null);
+        configuration.setRefShardCount(SHARD_COUNT);
+        refRepository = new RefRepository(configuration);
+    }
+
+    @After
+    public void tearDown() {
+        configuration.getExecutionModel().shutdown();
+    }
+
+    @Test
+    public void spreadsRefsOverShardsByName() {
+        Map<String, String> shardOfRef = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            String refName = "refs/heads/branch-" + i;
+            refRepository.getRef(REPOSITORY, refName).toList().toBlocking().single();
+            shardOfRef.put(refName, readHashKeys.get(readHashKeys.size() - 1));
+        }
+
+        Set<String> expectedShards = new HashSet<>();
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            expectedShards.add(REPOSITORY + "#" + shard);
+        }
+        assertEquals(expectedShards, new HashSet<>(shardOfRef.values()));
+
+        for (Map.Entry<String, String> entry : shardOfRef.entrySet()) {
+            assertEquals(REPOSITORY + "#" + Math.floorMod(entry.getKey().hashCode(), SHARD_COUNT), entry.getValue());
+        }
+    }
+
+    @Test
+    public void readsRefFromItsShard() {
+        String refName = "refs/heads/master";
+        String shardKey = REPOSITORY + "#" + Math.floorMod(refName.hashCode(), SHARD_COUNT);
+        itemsByHashKey.put(shardKey, Arrays.asList(refItem(shardKey, refName, false)));
+
+        List<Ref> refs = refRepository.getRef(REPOSITORY, refName).toList().toBlocking().single();
+
+        assertEquals(1, refs.size());
+        assertEquals(refName, refs.get(0).getName());
+        assertEquals(COMMIT, refs.get(0).getObjectId().name());
+    }
+
+    @Test
+    public void unshardedRefsUseRepositoryName() {
+        configuration.setRefShardCount(1);
+
+        refRepository.getRef(REPOSITORY, "refs/heads/master").toList().toBlocking().single();
+
+        assertEquals(new HashSet<>(Arrays.asList(REPOSITORY)), new HashSet<>(readHashKeys));
+    }
+
+    @Test
+    public void readingWithAnotherShardCountFails() {
+        itemsByHashKey.put(REPOSITORY, Arrays.asList(versionItem(REPOSITORY, 3).withInt("ShardCount", 2)));
+
+        try {
+            refRepository.getRef(REPOSITORY, "refs/heads/master").toList().toBlocking().single();
+            fail("Expected reading refs written with 2 shards to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("2 shards"));
+        }
+    }
+
+    @Test
+    public void refsWrittenBeforeShardCountWasStoredAreUnsharded() {
+        itemsByHashKey.put(REPOSITORY, Arrays.asList(versionItem(REPOSITORY, 3)));
+
+        try {
+            refRepository.getAllRefsSorted(REPOSITORY).toList().toBlocking().single();
+            fail("Expected reading unsharded refs with " + SHARD_COUNT + " shards to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("1 shards"));
+        }
+    }
+
+    @Test
+    public void readingWithStoredShardCountSucceeds() {
+        String refName = "refs/heads/master";
+        String shardKey = REPOSITORY + "#" + Math.floorMod(refName.hashCode(), SHARD_COUNT);
+        itemsByHashKey.put(REPOSITORY, Arrays.asList(new Item()
+                .withString("RepositoryName", REPOSITORY)
+                .withString("Name", ".version")
+                .withInt("ShardCount", SHARD_COUNT)));
+        itemsByHashKey.put(shardKey, Arrays.asList(refItem(shardKey, refName, false)));
+
+        assertEquals(1, refRepository.getRef(REPOSITORY, refName).toList().toBlocking().single().size());
+    }
+
+    @Test
+    public void mergesShardsIntoNameOrder() {
+        itemsByHashKey.put(REPOSITORY + "#0", Arrays.asList(
+                refItem(REPOSITORY + "#0", "refs/heads/b", false),
+                refItem(REPOSITORY + "#0", "refs/tags/v1", false),
+                versionItem(REPOSITORY + "#0", 3)));
+        itemsByHashKey.put(REPOSITORY + "#1", Arrays.asList(
+                refItem(REPOSITORY + "#1", "refs/heads/a", false),
+                refItem(REPOSITORY + "#1", "refs/heads/deleted", true)));
+        itemsByHashKey.put(REPOSITORY + "#3", Arrays.asList(
+                refItem(REPOSITORY + "#3", "HEAD", false),
+                refItem(REPOSITORY + "#3", "refs/heads/c", false)));
+
+        List<String> names = new ArrayList<>();
+        for (Ref ref : refRepository.getAllRefsSorted(REPOSITORY).toList().toBlocking().single()) {
+            names.add(ref.getName());
+        }
+
+        assertEquals(Arrays.asList("HEAD", "refs/heads/a", "refs/heads/b", "refs/heads/c", "refs/tags/v1"), names);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            assertTrue(readHashKeys.contains(REPOSITORY + "#" + shard));
+        }
+    }
+
+    @Test
+    public void filtersPrefixedRefsOfEveryShard() {
+        itemsByHashKey.put(REPOSITORY + "#0", Arrays.asList(refItem(REPOSITORY + "#0", "refs/heads/b", false)));
+        itemsByHashKey.put(REPOSITORY + "#2", Arrays.asList(refItem(REPOSITORY + "#2", "refs/heads/a", false)));
+
+        List<String> names = new ArrayList<>();
+        for (Ref ref : refRepository.getRefsWithPrefixSorted(REPOSITORY, "refs/heads/")
+                .toList().toBlocking().single()) {
+            names.add(ref.getName());
+        }
+
+        assertEquals(Arrays.asList("refs/heads/a", "refs/heads/b"), names);
+    }
+
+    @Test
+    public void refsVersionIsSumOfShardCounters() {
+        itemsByHashKey.put(REPOSITORY + "#0", Arrays.asList(versionItem(REPOSITORY + "#0", 3)));
+        itemsByHashKey.put(REPOSITORY + "#2", Arrays.asList(versionItem(REPOSITORY + "#2", 4)));
+        itemsByHashKey.put(REPOSITORY + "#3", Arrays.asList(versionItem(REPOSITORY + "#3", 5)));
+
+        assertEquals(12L, (long) refRepository.getRefsVersion(REPOSITORY).toBlocking().single());
+    }
+
+    /**
+     * Serves items from {@link #itemsByHashKey}, and records the hash keys that were read (when they are read, like the
+     * real client, rather than when the read is set up).
+     */
+    private class StubDynamoClient extends DynamoClient {
+        private StubDynamoClient() {
+            super(new AmazonDynamoDBClient(new BasicAWSCredentials("access", "secret")));
+        }
+
+        @Override
+        public Observable<Item> getItem(String tableName, GetItemSpec getItemSpec) {
+            String hashKey = hashKey(getItemSpec.getKeyComponents());
+            String name = nameOf(getItemSpec.getKeyComponents());
+
+            return Observable.defer(() -> {
+                readHashKeys.add(hashKey);
+                for (Item item : itemsByHashKey.getOrDefault(hashKey, new ArrayList<>())) {
+                    if (item.getString("Name").equals(name)) {
+                        return Observable.just(item);
+                    }
+                }
+                return Observable.just(null);
+            });
+        }
+
+        @Override
+        public Observable<Item> getAllItems(String tableName, String indexName, QuerySpec querySpec) {
+            String hashKey = (String) querySpec.getHashKey().getValue();
+            return Observable.defer(() -> {
+                readHashKeys.add(hashKey);
+                return Observable.from(itemsByHashKey.getOrDefault(hashKey, new ArrayList<>()));
+            });
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.chodavarapu.jgitaws.repositories;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Ravi Chodavarapu (rchodava@gmail.com)
+ */
+public class RefSnapshotCodecTest {
+    private static final ObjectId COMMIT = ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+    private static final ObjectId TAG = ObjectId.fromString("fedcba9876543210fedcba9876543210fedcba98");
+
+    private static List<Ref> roundTrip(List<Ref> refs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RefSnapshotCodec.write(refs, out);
+        return RefSnapshotCodec.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void assertRefEquals(Ref expected, Ref actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.isSymbolic(), actual.isSymbolic());
+        if (expected.isSymbolic()) {
+            assertEquals(expected.getTarget().getName(), actual.getTarget().getName());
+        } else {
+            assertEquals(expected.getObjectId(), actual.getObjectId());
+            assertEquals(expected.isPeeled(), actual.isPeeled());
+            assertEquals(expected.getPeeledObjectId(), actual.getPeeledObjectId());
+        }
+    }
+
+    private static Item refItem(String name, ObjectId target) {
+        return new Item()
+                .withString("Name", name)
+                .withString("Target", target.name())
+                .withBoolean("IsSymbolic", false)
+                .withBoolean("IsPeeled", false);
+    }
+
+    private static Item tombstone(String name) {
+        return refItem(name, COMMIT).withBoolean("IsDeleted", true);
+    }
+
+    @Test
+    public void roundTripsEveryKindOfRef() throws IOException {
+        List<Ref> refs = Arrays.asList(
+                new SymbolicRef("HEAD", new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/master", null)),
+                new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/feature", COMMIT),
+                new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, "refs/heads/master", COMMIT),
+                new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, "refs/tags/v1.0", TAG, COMMIT));
+
+        List<Ref> read = roundTrip(refs);
+
+        assertEquals(refs.size(), read.size());
+        for (int i = 0; i < refs.size(); i++) {
+            assertRefEquals(refs.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void roundTripsEmptySnapshot() throws IOException {
+        assertTrue(roundTrip(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void roundTripsLongAndSharedPrefixNames() throws IOException {
+        StringBuilder longName = new StringBuilder("refs/heads/");
+        for (int i = 0; i < 20; i++) {
+            longName.append("segment").append(i).append('/');
+        }
+
+        List<Ref> refs = new ArrayList<>();
+        refs.add(new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/a", COMMIT));
+        refs.add(new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, longName + "leaf", COMMIT));
+        refs.add(new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, longName + "leaf2", TAG));
+        refs.add(new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/été", TAG));
+
+        List<Ref> read = roundTrip(refs);
+
+        assertEquals(refs.size(), read.size());
+        for (int i = 0; i < refs.size(); i++) {
+            assertRefEquals(refs.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void rejectsDataThatIsNotASnapshot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        deflater.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        deflater.finish();
+
+        try {
+            RefSnapshotCodec.read(new ByteArrayInputStream(out.toByteArray()));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Not a ref snapshot", e.getMessage());
+        }
+    }
+
+    @Test
+    public void overlayReplacesAddsAndRemovesRefs() {
+        List<Ref> snapshot = Arrays.asList(
+                new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/deleted", COMMIT),
+                new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/kept", COMMIT),
+                new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/updated", COMMIT));
+
+        TreeMap<String, Ref> merged = RefRepository.applyOverlay(snapshot, Arrays.asList(
+                tombstone("refs/heads/deleted"),
+                refItem("refs/heads/updated", TAG),
+                refItem("refs/heads/added", TAG),
+                tombstone("refs/heads/never-existed")));
+
+        assertEquals(Arrays.asList("refs/heads/added", "refs/heads/kept", "refs/heads/updated"),
+                new ArrayList<>(merged.keySet()));
+        assertEquals(COMMIT, merged.get("refs/heads/kept").getObjectId());
+        assertEquals(TAG, merged.get("refs/heads/updated").getObjectId());
+        assertEquals(TAG, merged.get("refs/heads/added").getObjectId());
+        assertNull(merged.get("refs/heads/deleted"));
+        assertFalse(merged.containsKey("refs/heads/never-existed"));
+    }
+
+    @Test
+    public void overlayOfRecreatedRefKeepsIt() {
+        List<Ref> snapshot = Collections.singletonList(
+                new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, "refs/heads/master", COMMIT));
+
+        TreeMap<String, Ref> merged = RefRepository.applyOverlay(snapshot,
+                Collections.singletonList(refItem("refs/heads/master", TAG)));
+
+        assertEquals(1, merged.size());
+        assertEquals(TAG, merged.get("refs/heads/master").getObjectId());
+    }
+}